@@ -0,0 +1,149 @@
+package com.amshulman.insight.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lombok.Getter;
+
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.QueryFilter;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * Keeps the headers of every archive segment in memory and answers lookups
+ * by reading only the segments whose bounds overlap the query.
+ */
+public final class ArchiveCatalog {
+
+    private static final Comparator<HistoryRow> NEWEST_FIRST = new Comparator<HistoryRow>() {
+
+        @Override
+        public int compare(HistoryRow o1, HistoryRow o2) {
+            return Long.compare(o2.getDatetime(), o1.getDatetime());
+        }
+    };
+
+    @Getter private final File folder;
+    private final List<ArchiveSegment> segments = new CopyOnWriteArrayList<>();
+
+    public ArchiveCatalog(File folder) {
+        this.folder = folder;
+        scan(folder);
+    }
+
+    private void scan(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scan(file);
+            } else if (file.getName().endsWith(ArchiveSegment.EXTENSION)) {
+                try {
+                    segments.add(ArchiveSegment.open(file));
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable archive segment " + file);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a newly written segment, replacing any segments it holds the rows
+     * of, so rows archived twice are only found once.
+     */
+    void add(ArchiveSegment segment) {
+        for (ArchiveSegment existing : segments) {
+            if (existing.getFile().equals(segment.getFile())) {
+                segments.remove(existing);
+            } else if (segment.supersedes(existing)) {
+                segments.remove(existing);
+                if (!existing.getFile().delete()) {
+                    System.err.println("Unable to delete " + existing.getFile() + ", its rows are archived twice");
+                }
+            }
+        }
+        segments.add(segment);
+    }
+
+    /**
+     * Returns whether a lookup could match archived rows in any of its worlds.
+     */
+    public boolean covers(QueryParameters params) {
+        long after = params.getAfter() == null ? Long.MIN_VALUE : Timestamp.valueOf(params.getAfter()).getTime();
+
+        for (ArchiveSegment segment : segments) {
+            if (segment.getMaxDatetime() > after && params.getWorlds().contains(segment.getWorld())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns up to {@code limit} archived rows matching the lookup, ordered
+     * the same way the lookup orders its rows.
+     */
+    public List<HistoryRow> search(QueryParameters params, int limit) throws IOException {
+        List<HistoryRow> results = new ArrayList<>();
+        if (limit <= 0) {
+            return results;
+        }
+
+        QueryFilter filter = new QueryFilter(params);
+        EnumSet<WorldTable> tables = SqlSelectionQueryBuilder.getTables(params);
+        final boolean oldestFirst = params.isOrderReversed();
+        Comparator<HistoryRow> order = oldestFirst ? Collections.reverseOrder(NEWEST_FIRST) : NEWEST_FIRST;
+
+        List<ArchiveSegment> candidates = new ArrayList<>();
+        for (ArchiveSegment segment : segments) {
+            if (params.getWorlds().contains(segment.getWorld()) && tables.contains(segment.getTable()) && segment.mayMatch(filter)) {
+                candidates.add(segment);
+            }
+        }
+
+        // Visit the segments closest to the start of the requested order first
+        Collections.sort(candidates, new Comparator<ArchiveSegment>() {
+
+            @Override
+            public int compare(ArchiveSegment o1, ArchiveSegment o2) {
+                return oldestFirst ? Long.compare(o1.getMinDatetime(), o2.getMinDatetime()) : Long.compare(o2.getMaxDatetime(), o1.getMaxDatetime());
+            }
+        });
+
+        for (ArchiveSegment segment : candidates) {
+            if (results.size() >= limit) {
+                long cutoff = results.get(limit - 1).getDatetime();
+                if (oldestFirst ? segment.getMinDatetime() > cutoff : segment.getMaxDatetime() < cutoff) {
+                    break;
+                }
+            }
+
+            for (HistoryRow row : segment.read()) {
+                if (filter.matches(row)) {
+                    results.add(row);
+                }
+            }
+
+            Collections.sort(results, order);
+            if (results.size() > limit) {
+                results.subList(limit, results.size()).clear();
+            }
+        }
+
+        return results;
+    }
+}
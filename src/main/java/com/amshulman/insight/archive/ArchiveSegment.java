@@ -0,0 +1,326 @@
+package com.amshulman.insight.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.QueryFilter;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * A compressed, column-oriented file of archived rows from one world table.
+ * <p>
+ * The header is stored uncompressed and holds the time and coordinate bounds
+ * of the rows, so segments can be skipped without inflating them. The body
+ * is a string dictionary followed by one column per field.
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ArchiveSegment {
+
+    public static final String EXTENSION = ".seg";
+
+    private static final int MAGIC = 0x49534547; // ISEG
+    private static final byte VERSION = 1;
+    private static final int NULL_REFERENCE = -1;
+
+    private final File file;
+    private final String world;
+    private final WorldTable table;
+    private final int rowCount;
+    private final long minDatetime;
+    private final long maxDatetime;
+    private final int minX, maxX;
+    private final int minY, maxY;
+    private final int minZ, maxZ;
+
+    /**
+     * Returns the name of the segment for a day's rows with ids from
+     * {@code firstId} to {@code lastId}.
+     */
+    static String getFileName(LocalDate day, long firstId, long lastId) {
+        return day + "-" + firstId + "-" + lastId + EXTENSION;
+    }
+
+    /**
+     * Returns whether this segment holds rows of the same world table and day
+     * as {@code other} with an overlapping id range. That happens when rows
+     * are archived again because deleting them failed the first time, and
+     * this segment then holds all of the rows of {@code other}.
+     */
+    boolean supersedes(ArchiveSegment other) {
+        long[] range = parseFileName(file);
+        long[] otherRange = parseFileName(other.file);
+        if (range == null || otherRange == null || !world.equals(other.world) || table != other.table) {
+            return false;
+        }
+
+        return range[0] == otherRange[0] && range[1] <= otherRange[2] && otherRange[1] <= range[2];
+    }
+
+    /**
+     * Returns the epoch day and the first and last row id in the name of a
+     * segment, or null if the name doesn't hold an id range.
+     */
+    private static long[] parseFileName(File file) {
+        String[] parts = file.getName().substring(0, file.getName().length() - EXTENSION.length()).split("-");
+        if (parts.length != 5) {
+            return null; // Named before segments recorded their id range
+        }
+
+        try {
+            return new long[] { LocalDate.parse(parts[0] + "-" + parts[1] + "-" + parts[2]).toEpochDay(), Long.parseLong(parts[3]), Long.parseLong(parts[4]) };
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public boolean mayMatch(QueryFilter filter) {
+        return filter.mayMatch(minDatetime, maxDatetime, minX, maxX, minY, maxY, minZ, maxZ);
+    }
+
+    /**
+     * Reads just the header of a segment file.
+     */
+    public static ArchiveSegment open(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return readHeader(file, in);
+        }
+    }
+
+    public List<HistoryRow> read() throws IOException {
+        try (BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(file))) {
+            readHeader(file, new DataInputStream(buffered));
+            DataInputStream in = new DataInputStream(new GZIPInputStream(buffered));
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; ++i) {
+                strings[i] = in.readUTF();
+            }
+
+            long[] datetime = new long[rowCount];
+            int[] action = new int[rowCount], actor = new int[rowCount];
+            int[] x = new int[rowCount], y = new int[rowCount], z = new int[rowCount];
+            int[] namespace = new int[rowCount], name = new int[rowCount], actee = new int[rowCount];
+            short[] subtype = new short[rowCount];
+            byte[][] metadata = new byte[rowCount][];
+
+            for (int i = 0; i < rowCount; ++i) {
+                datetime[i] = minDatetime + in.readLong();
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                action[i] = in.readInt();
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                actor[i] = in.readInt();
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                x[i] = in.readInt();
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                y[i] = in.readInt();
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                z[i] = in.readInt();
+            }
+
+            if (table == WorldTable.ENTITIES) {
+                for (int i = 0; i < rowCount; ++i) {
+                    actee[i] = in.readInt();
+                }
+            } else {
+                for (int i = 0; i < rowCount; ++i) {
+                    namespace[i] = in.readInt();
+                }
+                for (int i = 0; i < rowCount; ++i) {
+                    name[i] = in.readInt();
+                }
+                for (int i = 0; i < rowCount; ++i) {
+                    subtype[i] = in.readShort();
+                }
+            }
+
+            for (int i = 0; i < rowCount; ++i) {
+                int length = in.readInt();
+                if (length != NULL_REFERENCE) {
+                    metadata[i] = new byte[length];
+                    in.readFully(metadata[i]);
+                }
+            }
+
+            List<HistoryRow> rows = new ArrayList<>(rowCount);
+            for (int i = 0; i < rowCount; ++i) {
+                if (table == WorldTable.ENTITIES) {
+                    rows.add(new HistoryRow(table, datetime[i], strings[actor[i]], strings[action[i]], world, x[i], y[i], z[i],
+                                            null, null, (short) 0, strings[actee[i]], metadata[i]));
+                } else {
+                    rows.add(new HistoryRow(table, datetime[i], strings[actor[i]], strings[action[i]], world, x[i], y[i], z[i],
+                                            strings[namespace[i]], strings[name[i]], subtype[i], null, metadata[i]));
+                }
+            }
+
+            return rows;
+        }
+    }
+
+    /**
+     * Writes {@code rows} to {@code file}, replacing it atomically once the
+     * data has been synced to disk.
+     */
+    public static ArchiveSegment write(File file, String world, WorldTable table, List<HistoryRow> rows) throws IOException {
+        long minDatetime = Long.MAX_VALUE, maxDatetime = Long.MIN_VALUE;
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+        Map<String, Integer> strings = new LinkedHashMap<>();
+
+        for (HistoryRow row : rows) {
+            minDatetime = Math.min(minDatetime, row.getDatetime());
+            maxDatetime = Math.max(maxDatetime, row.getDatetime());
+            minX = Math.min(minX, row.getX());
+            maxX = Math.max(maxX, row.getX());
+            minY = Math.min(minY, row.getY());
+            maxY = Math.max(maxY, row.getY());
+            minZ = Math.min(minZ, row.getZ());
+            maxZ = Math.max(maxZ, row.getZ());
+
+            intern(strings, row.getActor());
+            intern(strings, row.getAction());
+            if (table == WorldTable.ENTITIES) {
+                intern(strings, row.getActee());
+            } else {
+                intern(strings, row.getMaterialNamespace());
+                intern(strings, row.getMaterialName());
+            }
+        }
+
+        ArchiveSegment segment = new ArchiveSegment(file, world, table, rows.size(), minDatetime, maxDatetime, minX, maxX, minY, maxY, minZ, maxZ);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(fos);
+            segment.writeHeader(new DataOutputStream(buffered));
+
+            GZIPOutputStream gzip = new GZIPOutputStream(buffered);
+            DataOutputStream out = new DataOutputStream(gzip);
+
+            out.writeInt(strings.size());
+            for (String s : strings.keySet()) {
+                out.writeUTF(s);
+            }
+
+            for (HistoryRow row : rows) {
+                out.writeLong(row.getDatetime() - minDatetime);
+            }
+            for (HistoryRow row : rows) {
+                out.writeInt(strings.get(row.getAction()));
+            }
+            for (HistoryRow row : rows) {
+                out.writeInt(strings.get(row.getActor()));
+            }
+            for (HistoryRow row : rows) {
+                out.writeInt(row.getX());
+            }
+            for (HistoryRow row : rows) {
+                out.writeInt(row.getY());
+            }
+            for (HistoryRow row : rows) {
+                out.writeInt(row.getZ());
+            }
+
+            if (table == WorldTable.ENTITIES) {
+                for (HistoryRow row : rows) {
+                    out.writeInt(strings.get(row.getActee()));
+                }
+            } else {
+                for (HistoryRow row : rows) {
+                    out.writeInt(strings.get(row.getMaterialNamespace()));
+                }
+                for (HistoryRow row : rows) {
+                    out.writeInt(strings.get(row.getMaterialName()));
+                }
+                for (HistoryRow row : rows) {
+                    out.writeShort(row.getMaterialSubtype());
+                }
+            }
+
+            for (HistoryRow row : rows) {
+                if (row.getMetadata() == null) {
+                    out.writeInt(NULL_REFERENCE);
+                } else {
+                    out.writeInt(row.getMetadata().length);
+                    out.write(row.getMetadata());
+                }
+            }
+
+            out.flush();
+            gzip.finish();
+            buffered.flush();
+            fos.getFD().sync();
+        }
+
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            throw new IOException("Unable to move " + temp + " to " + file);
+        }
+
+        return segment;
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(world);
+        out.writeByte(table.ordinal());
+        out.writeInt(rowCount);
+        out.writeLong(minDatetime);
+        out.writeLong(maxDatetime);
+        out.writeInt(minX);
+        out.writeInt(maxX);
+        out.writeInt(minY);
+        out.writeInt(maxY);
+        out.writeInt(minZ);
+        out.writeInt(maxZ);
+        out.flush();
+    }
+
+    private static ArchiveSegment readHeader(File file, DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not an archive segment");
+        }
+
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException(file + " has unknown version " + version);
+        }
+
+        return new ArchiveSegment(file, in.readUTF(), WorldTable.values()[in.readByte()], in.readInt(),
+                                  in.readLong(), in.readLong(),
+                                  in.readInt(), in.readInt(),
+                                  in.readInt(), in.readInt(),
+                                  in.readInt(), in.readInt());
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.amshulman.insight.archive;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+import com.amshulman.insight.sql.ConnectionPool;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.MetadataCodec;
+import com.amshulman.insight.sql.MetadataStore;
+import com.amshulman.insight.sql.WorldRegistry;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * Moves rows older than a threshold out of the world tables and into archive
+ * segments, one segment per world table, day and batch. Rows are only deleted
+ * once their segment is on disk. Segment names hold the range of row ids in
+ * them, so when a run dies between the two steps, the next run's segments
+ * replace the ones covering the same rows instead of duplicating them. A
+ * batch with metadata that can't be decoded is left in place.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class HistoryArchiver implements Runnable {
+
+    static final int BATCH_SIZE = 20000;
+    static final int NO_REFERENCE = -1;
+
+    ConnectionPool cp;
+    MetadataCodec codec;
+    MetadataStore metadataStore;
+    ArchiveCatalog catalog;
+    WorldRegistry registry;
+    Set<String> worlds;
+    long maxAge;
+    TimeUnit maxAgeUnit;
+
+    @Override
+    public void run() {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - maxAgeUnit.toMillis(maxAge));
+
+        for (String world : worlds) {
+            for (WorldTable table : WorldTable.values()) {
+                try {
+                    while (archiveBatch(world, table, cutoff) == BATCH_SIZE) {}
+                } catch (SQLException | IOException e) {
+                    System.err.println("Unable to archive " + table.getTableName(world));
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private int archiveBatch(String world, WorldTable table, Timestamp cutoff) throws SQLException, IOException {
+        try (Connection conn = cp.getConnection()) {
+            List<HistoryRow> rows;
+            TLongList ids = new TLongArrayList();
+
+            try (PreparedStatement stmt = conn.prepareStatement(getSelectQuery(world, table, registry.hasMetadataIds(world)) + "WHERE `datetime` < ? ORDER BY `" + table.getTableName(world) + "`.`id` LIMIT ?")) {
+                stmt.setTimestamp(1, cutoff);
+                stmt.setInt(2, BATCH_SIZE);
+                rows = readRows(conn, stmt, world, table, codec, metadataStore, ids);
+            }
+
+            if (rows.isEmpty()) {
+                return 0;
+            }
+
+            Map<LocalDate, List<HistoryRow>> days = new TreeMap<>();
+            Map<LocalDate, long[]> dayIds = new TreeMap<>();
+            for (int i = 0; i < rows.size(); ++i) {
+                HistoryRow row = rows.get(i);
+                LocalDate day = new Timestamp(row.getDatetime()).toLocalDateTime().toLocalDate();
+                List<HistoryRow> dayRows = days.get(day);
+                if (dayRows == null) {
+                    dayRows = new ArrayList<>();
+                    days.put(day, dayRows);
+                    dayIds.put(day, new long[] { ids.get(i), ids.get(i) });
+                }
+                dayRows.add(row);
+                dayIds.get(day)[1] = ids.get(i); // Rows are in id order
+            }
+
+            File directory = new File(new File(catalog.getFolder(), world), table.name().toLowerCase());
+            for (Map.Entry<LocalDate, List<HistoryRow>> entry : days.entrySet()) {
+                long[] range = dayIds.get(entry.getKey());
+                File file = new File(directory, ArchiveSegment.getFileName(entry.getKey(), range[0], range[1]));
+                catalog.add(ArchiveSegment.write(file, world, table, entry.getValue()));
+            }
+
+            try (PreparedStatement delete = conn.prepareStatement("DELETE FROM `" + table.getTableName(world) + "` WHERE `id` BETWEEN ? AND ? AND `datetime` < ?")) {
+                delete.setLong(1, ids.get(0));
+                delete.setLong(2, ids.get(ids.size() - 1));
+                delete.setTimestamp(3, cutoff);
+                delete.executeUpdate();
+            }
+
+            return rows.size();
+        }
+    }
+
+    /**
+     * Reads the rows selected by {@code stmt}, a query starting with
+     * {@link #getSelectQuery}, with their metadata fetched and decoded. The
+     * id of each row is added to {@code ids}. Throws if any metadata can't
+     * be decoded, rather than lose it.
+     */
+    static List<HistoryRow> readRows(Connection conn, PreparedStatement stmt, String world, WorldTable table, MetadataCodec codec, MetadataStore metadataStore, TLongList ids) throws SQLException {
+        List<HistoryRow> rows = new ArrayList<>();
+        TIntList references = new TIntArrayList();
+        TIntSet metadataIds = new TIntHashSet();
+
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+
+                rows.add(new HistoryRow(table, rs.getTimestamp(2).getTime(), rs.getString(3), rs.getString(4), world, rs.getInt(5), rs.getInt(6), rs.getInt(7),
+                                        rs.getString(8), rs.getString(9), rs.getShort(10), rs.getString(11), rs.getBytes(12)));
+
+                int metadataId = rs.getInt(13);
+                if (rs.wasNull()) {
+                    references.add(NO_REFERENCE);
+                } else {
+                    references.add(metadataId);
+                    metadataIds.add(metadataId);
+                }
+            }
+        }
+
+        TIntObjectMap<byte[]> referenced = metadataStore.fetch(conn, world, metadataIds);
+        for (int i = 0; i < rows.size(); ++i) {
+            HistoryRow row = rows.get(i);
+            byte[] stored;
+            if (references.get(i) == NO_REFERENCE) {
+                stored = row.getMetadata();
+            } else {
+                stored = referenced.get(references.get(i));
+                if (stored == null) {
+                    throw new SQLException("Metadata " + references.get(i) + " of " + table.getTableName(world) + " row " + ids.get(i) + " is missing");
+                }
+            }
+
+            try {
+                rows.set(i, row.withMetadata(codec.decode(stored)));
+            } catch (IllegalArgumentException e) {
+                throw new SQLException("Unable to decode the metadata of " + table.getTableName(world) + " row " + ids.get(i), e);
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Returns the select and joins of a query for the rows of a world table,
+     * to be followed by a condition. Selects the id first, then the fields of
+     * a {@link HistoryRow} and the metadata id, which is always null unless
+     * the table has {@code metadataIds}.
+     */
+    static String getSelectQuery(String world, WorldTable table, boolean metadataIds) {
+        String tableName = table.getTableName(world);
+        String query = "SELECT `" + tableName + "`.`id`, `datetime`, `actors`.`name`, `actions`.`name`, `x`, `y`, `z`, ";
+
+        if (table == WorldTable.ENTITIES) {
+            query += "NULL, NULL, 0, `actees`.`name`, `metadata`, NULL " +
+                     "FROM `" + tableName + "` " +
+                     "INNER JOIN `actors` ON `" + tableName + "`.`actorid` = `actors`.`id` " +
+                     "INNER JOIN `actions` ON `" + tableName + "`.`actionid` = `actions`.`id` " +
+                     "INNER JOIN `actors` AS `actees` ON `" + tableName + "`.`acteeid` = `actees`.`id` ";
+        } else {
+            query += "`materials`.`namespace`, `materials`.`name`, `materials`.`subtype`, NULL, `metadata`, " + (metadataIds ? "`metadataid` " : "NULL ") +
+                     "FROM `" + tableName + "` " +
+                     "INNER JOIN `actors` ON `" + tableName + "`.`actorid` = `actors`.`id` " +
+                     "INNER JOIN `actions` ON `" + tableName + "`.`actionid` = `actions`.`id` " +
+                     "INNER JOIN `materials` ON `" + tableName + "`.`" + table.getReferenceColumn() + "` = `materials`.`id` ";
+        }
+
+        return query;
+    }
+}
@@ -0,0 +1,147 @@
+package com.amshulman.insight.archive;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+import com.amshulman.insight.sql.ConnectionPool;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.MetadataCodec;
+import com.amshulman.insight.sql.MetadataStore;
+import com.amshulman.insight.sql.WorldRegistry;
+import com.amshulman.insight.sql.WorldTable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies every row of the given worlds into {@link TransferChunk}s, reading
+ * fixed id ranges of the world tables on several connections at once. Ranges
+ * that were exported before are skipped, so an interrupted export can simply
+ * be run again. Rows written while the export runs may or may not be
+ * included.
+ * <p>
+ * Chunks are named after the ids they cover. The last range of a table is
+ * usually still filling up, so a rerun exports whatever has been added past
+ * the end of its previous chunks as a further chunk of the same range.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class HistoryExporter {
+
+    private static final int RANGE_SIZE = 50000;
+
+    ConnectionPool cp;
+    MetadataCodec codec;
+    MetadataStore metadataStore;
+    File folder;
+    WorldRegistry registry;
+    Set<String> worlds;
+    int threads;
+
+    /**
+     * Runs the export and returns the number of rows exported.
+     *
+     * @throws IOException If any range could not be exported.
+     */
+    public long run() throws SQLException, IOException, InterruptedException {
+        ExecutorService exporters = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("Insight export %d").setDaemon(true).build());
+        List<Future<Integer>> ranges = new ArrayList<>();
+
+        try {
+            for (String world : worlds) {
+                for (WorldTable table : WorldTable.values()) {
+                    long[] bounds = getIdBounds(world, table);
+                    if (bounds[0] > bounds[1]) {
+                        continue;
+                    }
+
+                    // Aligned so that ranges stay put when old rows are archived
+                    for (long start = bounds[0] - bounds[0] % RANGE_SIZE; start <= bounds[1]; start += RANGE_SIZE) {
+                        long end = start + RANGE_SIZE - 1;
+                        long first = TransferChunk.getCoveredUpTo(folder, world, table, start, end) + 1;
+                        long last = Math.min(end, bounds[1]);
+                        if (first <= last) {
+                            ranges.add(exporters.submit(new RangeExport(world, table, first, last)));
+                        }
+                    }
+                }
+            }
+
+            return await(ranges);
+        } finally {
+            exporters.shutdownNow();
+        }
+    }
+
+    private long[] getIdBounds(String world, WorldTable table) throws SQLException {
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT MIN(`id`), MAX(`id`) FROM `" + table.getTableName(world) + "`");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return new long[] { 0, -1 }; // Empty table
+            }
+            return new long[] { min, rs.getLong(2) };
+        }
+    }
+
+    static long await(List<Future<Integer>> tasks) throws IOException, InterruptedException {
+        long rows = 0;
+        int failed = 0;
+
+        for (Future<Integer> task : tasks) {
+            try {
+                rows += task.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                ++failed;
+            }
+        }
+
+        if (failed != 0) {
+            throw new IOException(failed + " of " + tasks.size() + " chunks failed, run again to retry them");
+        }
+        return rows;
+    }
+
+    @RequiredArgsConstructor
+    private final class RangeExport implements Callable<Integer> {
+
+        final String world;
+        final WorldTable table;
+        final long first;
+        final long last;
+
+        @Override
+        public Integer call() throws SQLException, IOException {
+            File marker = TransferChunk.markerFor(folder, world, table, first, last);
+            List<HistoryRow> rows;
+            try (Connection conn = cp.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(HistoryArchiver.getSelectQuery(world, table, registry.hasMetadataIds(world)) + "WHERE `" + table.getTableName(world) + "`.`id` BETWEEN ? AND ?")) {
+                stmt.setLong(1, first);
+                stmt.setLong(2, last);
+                rows = HistoryArchiver.readRows(conn, stmt, world, table, codec, metadataStore, new TLongArrayList());
+            }
+
+            TransferChunk.write(marker, world, table, rows);
+            return rows.size();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.amshulman.insight.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+import com.amshulman.insight.sql.ConnectionPool;
+import com.amshulman.insight.sql.HistoryLoader;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.TableCreator;
+import com.amshulman.insight.sql.WorldRegistry;
+import com.amshulman.insight.sql.WorldTable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Loads the chunks written by {@link HistoryExporter}, several at a time.
+ * Chunks already in the database's transfer log are skipped, so an
+ * interrupted import can simply be run again, and chunks that don't match
+ * their checksum are reported rather than loaded.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class HistoryImporter {
+
+    ConnectionPool cp;
+    WorldRegistry registry;
+    HistoryLoader loader;
+    File folder;
+    int threads;
+    boolean timeClustered;
+
+    /**
+     * Runs the import and returns the number of rows imported.
+     *
+     * @throws IOException If any chunk could not be imported.
+     */
+    public long run() throws SQLException, IOException, InterruptedException {
+        Set<String> loaded = loader.getLoadedChunks();
+        List<TransferChunk> chunks = new ArrayList<>();
+
+        File[] worldFolders = folder.listFiles();
+        for (File worldFolder : worldFolders == null ? new File[0] : worldFolders) {
+            if (!worldFolder.isDirectory()) {
+                continue;
+            }
+
+            String world = worldFolder.getName();
+            if (!registry.isCurrent(world)) {
+                TableCreator.createWorldTables(cp, registry, world, timeClustered);
+            }
+
+            for (WorldTable table : WorldTable.values()) {
+                File[] markers = TransferChunk.getFolder(folder, world, table).listFiles();
+                for (File marker : markers == null ? new File[0] : markers) {
+                    if (!marker.getName().endsWith(TransferChunk.MARKER_EXTENSION)) {
+                        continue;
+                    }
+
+                    TransferChunk chunk = TransferChunk.open(folder, marker);
+                    if (!loaded.contains(chunk.getName())) {
+                        chunks.add(chunk);
+                    }
+                }
+            }
+        }
+
+        ExecutorService importers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("Insight import %d").setDaemon(true).build());
+        List<Future<Integer>> tasks = new ArrayList<>(chunks.size());
+        try {
+            for (final TransferChunk chunk : chunks) {
+                tasks.add(importers.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws IOException, SQLException {
+                        List<HistoryRow> rows = chunk.read();
+                        loader.load(chunk.getName(), rows);
+                        return rows.size();
+                    }
+                }));
+            }
+
+            return HistoryExporter.await(tasks);
+        } finally {
+            importers.shutdownNow();
+        }
+    }
+}
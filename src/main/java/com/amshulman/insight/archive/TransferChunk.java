@@ -0,0 +1,150 @@
+package com.amshulman.insight.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * One id range of a world table, as exported by {@link HistoryExporter}. The
+ * rows are stored as an {@link ArchiveSegment}; a marker file next to it
+ * holds the row count and the segment's CRC32 and is written last, so a
+ * chunk without a marker was never finished.
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class TransferChunk {
+
+    static final String MARKER_EXTENSION = ".done";
+
+    private final File marker;
+    private final String name;
+    private final int rowCount;
+    private final long checksum;
+
+    static File getFolder(File root, String world, WorldTable table) {
+        return new File(new File(root, world), table.name().toLowerCase());
+    }
+
+    static File markerFor(File root, String world, WorldTable table, long firstId, long lastId) {
+        return new File(getFolder(root, world, table), String.format("%012d-%012d", firstId, lastId) + MARKER_EXTENSION);
+    }
+
+    /**
+     * Returns the highest id covered by the finished chunks that start
+     * between {@code fromId} and {@code toId}, or {@code fromId - 1} if
+     * there are none.
+     */
+    static long getCoveredUpTo(File root, String world, WorldTable table, long fromId, long toId) {
+        long covered = fromId - 1;
+
+        String[] names = getFolder(root, world, table).list();
+        for (String name : names == null ? new String[0] : names) {
+            if (!name.endsWith(MARKER_EXTENSION)) {
+                continue;
+            }
+
+            String[] bounds = name.substring(0, name.length() - MARKER_EXTENSION.length()).split("-");
+            if (bounds.length != 2) {
+                continue;
+            }
+
+            try {
+                long first = Long.parseLong(bounds[0]);
+                if (first >= fromId && first <= toId) {
+                    covered = Math.max(covered, Long.parseLong(bounds[1]));
+                }
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+
+        return covered;
+    }
+
+    /**
+     * Writes the rows of a chunk followed by its marker.
+     */
+    static void write(File marker, String world, WorldTable table, List<HistoryRow> rows) throws IOException {
+        long checksum = 0;
+        if (!rows.isEmpty()) {
+            File segment = getSegment(marker);
+            ArchiveSegment.write(segment, world, table, rows);
+            checksum = checksum(segment);
+        }
+
+        marker.getParentFile().mkdirs();
+        File temp = new File(marker.getParentFile(), marker.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write((rows.size() + " " + Long.toHexString(checksum)).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+
+        if (marker.exists() && !marker.delete() || !temp.renameTo(marker)) {
+            throw new IOException("Unable to move " + temp + " to " + marker);
+        }
+    }
+
+    static TransferChunk open(File root, File marker) throws IOException {
+        String[] contents = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        if (contents.length != 2) {
+            throw new IOException(marker + " is not a chunk marker");
+        }
+
+        // Relative to the export folder, so the same chunk has the same name wherever it is imported from
+        String path = root.toURI().relativize(marker.toURI()).getPath();
+        return new TransferChunk(marker, path.substring(0, path.length() - MARKER_EXTENSION.length()), Integer.parseInt(contents[0]), Long.parseLong(contents[1], 16));
+    }
+
+    /**
+     * Reads the rows of the chunk, after checking them against the marker.
+     */
+    List<HistoryRow> read() throws IOException {
+        if (rowCount == 0) {
+            return Collections.emptyList();
+        }
+
+        File segment = getSegment(marker);
+        if (checksum(segment) != checksum) {
+            throw new IOException(segment + " does not match its checksum");
+        }
+
+        List<HistoryRow> rows = ArchiveSegment.open(segment).read();
+        if (rows.size() != rowCount) {
+            throw new IOException(segment + " has " + rows.size() + " rows instead of " + rowCount);
+        }
+        return rows;
+    }
+
+    private static File getSegment(File marker) {
+        String name = marker.getName();
+        return new File(marker.getParentFile(), name.substring(0, name.length() - MARKER_EXTENSION.length()) + ArchiveSegment.EXTENSION);
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
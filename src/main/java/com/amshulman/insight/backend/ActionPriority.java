@@ -0,0 +1,9 @@
+package com.amshulman.insight.backend;
+
+/**
+ * How important it is to keep the rows of an action when the backend is
+ * overloaded.
+ */
+public enum ActionPriority {
+    LOW, NORMAL, HIGH
+}
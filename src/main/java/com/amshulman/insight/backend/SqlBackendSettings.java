@@ -0,0 +1,112 @@
+package com.amshulman.insight.backend;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.FieldDefaults;
+
+import com.amshulman.insight.sql.CoalesceRule;
+
+/**
+ * Tuning options for {@link SqlReadWriteBackend} that are not part of the
+ * shared database configuration.
+ */
+@Getter
+@Setter
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class SqlBackendSettings {
+
+    File dataFolder = new File("plugins", "Insight");
+
+    /** Rows older than this many days are moved to the archive. Zero disables archiving. */
+    int archiveAfterDays = 0;
+    int archiveIntervalMinutes = 60;
+
+    /** Most connections used for writing at once. Writer lanes beyond this take turns. */
+    int writerConnections = 4;
+
+    /** Lookups expected to run at the same time. */
+    int readerConnections = 2;
+
+    /** The pool grows up to this many connections while callers have to wait for one. */
+    int maxConnections = 20;
+
+    /** Number of actors kept in memory. Less active ones are looked up again when needed. */
+    int actorCacheSize = 50000;
+
+    /**
+     * How often to pick up actors, actions and materials added by other
+     * servers sharing the database. Zero disables it, which is fine for a
+     * single server.
+     */
+    int dictionaryPollSeconds = 5;
+
+    /**
+     * Store world tables in time order rather than insertion order, which
+     * speeds up lookups of recent history. Existing tables are converted
+     * when their world is registered, which can take a while for big ones.
+     */
+    boolean timeClusteredTables = false;
+
+    /** Give each table its own writer, rather than each world. */
+    boolean writerLanePerTable = false;
+
+    /** Rows waiting to be written before low priority actions are shed. */
+    int slowingBacklog = 20000;
+
+    /**
+     * Rows waiting to be written before everything but high priority actions
+     * is shed. Keep this well below the 100000 rows the write queue holds,
+     * beyond which every row is shed.
+     */
+    int sheddingBacklog = 50000;
+
+    /** Priorities by action name. Actions that aren't listed get {@link ActionPriority#NORMAL}. */
+    Map<String, ActionPriority> actionPriorities = new HashMap<>();
+
+    /**
+     * How rows of each action are coalesced before writing. Actions that
+     * aren't listed are never coalesced. Coalesced rows aren't counted by
+     * aggregate lookups.
+     */
+    Map<String, CoalesceRule> coalesceRules = new HashMap<>();
+
+    /** Rows at most this far apart are coalesced. */
+    long coalesceWindowMillis = 1000;
+
+    /** How often rows that couldn't be written because the database was unavailable are tried again. */
+    int deadLetterReplayMinutes = 5;
+
+    /** Lookups taking at least this long are written to the slow query log. Negative disables it. */
+    long slowQueryMillis = 1000;
+
+    /** Fraction of all other lookups to write to the slow query log. */
+    double slowQuerySampleRate = 0;
+
+    /** Capture the query plan of logged lookups with EXPLAIN. */
+    boolean explainSlowQueries = false;
+
+    int slowQueryLogFileSize = 4 * 1024 * 1024;
+    int slowQueryLogFiles = 5;
+
+    public ActionPriority getPriority(String action) {
+        ActionPriority priority = actionPriorities.get(action);
+        return priority == null ? ActionPriority.NORMAL : priority;
+    }
+
+    public File getArchiveFolder() {
+        return new File(dataFolder, "archive");
+    }
+
+    public File getDeadLetterFolder() {
+        return new File(dataFolder, "deadletter");
+    }
+
+    public File getLogFolder() {
+        return new File(dataFolder, "logs");
+    }
+}
@@ -1,66 +1,237 @@
 package com.amshulman.insight.backend;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import com.amshulman.insight.archive.ArchiveCatalog;
+import com.amshulman.insight.archive.HistoryArchiver;
+import com.amshulman.insight.archive.HistoryExporter;
+import com.amshulman.insight.archive.HistoryImporter;
 import com.amshulman.insight.query.QueryParameterBuilder;
 import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.results.InsightRecord;
 import com.amshulman.insight.results.InsightResultSet;
 import com.amshulman.insight.results.InsightSqlResultSet;
+import com.amshulman.insight.results.ReplayCursor;
+import com.amshulman.insight.results.SqlRecordReader;
 import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.sql.ActivityCount;
+import com.amshulman.insight.sql.ActivityQuery;
+import com.amshulman.insight.sql.ActivityRollup;
+import com.amshulman.insight.sql.BatchCommitter;
 import com.amshulman.insight.sql.ConnectionPool;
 import com.amshulman.insight.sql.DatabaseDumper;
+import com.amshulman.insight.sql.DeadLetterStore;
+import com.amshulman.insight.sql.DictionaryLog;
 import com.amshulman.insight.sql.ForeignKeyCache;
+import com.amshulman.insight.sql.HistoryLoader;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.KeyResolver;
+import com.amshulman.insight.sql.MetadataCodec;
+import com.amshulman.insight.sql.MetadataStore;
+import com.amshulman.insight.sql.PlayerRegistrar;
+import com.amshulman.insight.sql.PoolStats;
+import com.amshulman.insight.sql.RowCoalescer;
+import com.amshulman.insight.sql.RowCountEstimate;
+import com.amshulman.insight.sql.RowCountEstimator;
+import com.amshulman.insight.sql.SlowQueryLog;
 import com.amshulman.insight.sql.SqlSelectionQueryBuilder;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder.SqlSelectionQuery;
 import com.amshulman.insight.sql.TableCreator;
+import com.amshulman.insight.sql.WorldRegistry;
+import com.amshulman.insight.sql.WriterLanes;
+import com.amshulman.insight.sql.WriterSessionPool;
 import com.amshulman.insight.tbd.RowCache;
 import com.amshulman.insight.util.InsightDatabaseConfigurationInfo;
-import com.amshulman.insight.util.PlayerUtil;
+import com.amshulman.insight.workload.TrafficCapture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
 
-    private final String databaseName;
+    private static final int SYNC_FLUSH_TIMEOUT_SECONDS = 5;
+    private static final int WRITE_QUEUE_CAPACITY = 1000;
+
+    private static final Runnable NO_OP = new Runnable() {
+
+        @Override
+        public void run() {}
+    };
 
     private int maxCacheSize = 100;
     private int targetCacheSize = 75;
     private RowCache cache;
 
     private final Logger logger;
+    private final SqlBackendSettings settings;
 
+    private final DictionaryLog dictionaryLog;
     private final ForeignKeyCache keyCache;
+    private final KeyResolver keyResolver;
+    private final PlayerRegistrar registrar;
+    private final MetadataCodec codec;
+    private final MetadataStore metadataStore;
+    private final SqlRecordReader recordReader;
+    private final ArchiveCatalog archive;
+    private final SlowQueryLog slowQueryLog;
+    private final WorldRegistry worldRegistry;
     private final ConnectionPool cp;
-    private final ExecutorService writeThreads = new ThreadPoolExecutor(2, 20, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000));
+    private final WriterSessionPool writerSessions;
+    private final DeadLetterStore deadLetters;
+    private final BatchCommitter committer;
+    private final WriterLanes writerLanes;
+    private final RowCoalescer coalescer;
+    // A single thread resolves keys in submission order, every flush goes through it; the writer lanes do the actual writing
+    private final ThreadPoolExecutor writeThreads = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(WRITE_QUEUE_CAPACITY));
+    private final ExecutorService replayThreads = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("Insight replay %d").setDaemon(true).build());
+    private final AtomicInteger queuedRows = new AtomicInteger();
+    // Notified whenever a dumper or a writer lane finishes a batch
+    private final Object writeProgress = new Object();
+    private final Queue<RowEntry> heldRows = new ConcurrentLinkedQueue<>();
+    private final AtomicLong shedRows = new AtomicLong();
+    private volatile TrafficCapture capture;
+    private final Set<String> upgradingWorlds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ScheduledExecutorService maintenanceThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Insight maintenance").setDaemon(true).build());
+    // Table upgrades can take hours, so they get a thread of their own rather than holding up maintenance
+    private final ExecutorService upgradeThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Insight table upgrades").setDaemon(true).build());
 
     public SqlReadWriteBackend(InsightDatabaseConfigurationInfo configurationContext) {
+        this(configurationContext, new SqlBackendSettings());
+    }
+
+    public SqlReadWriteBackend(InsightDatabaseConfigurationInfo configurationContext, SqlBackendSettings settings) {
+        this.settings = settings;
+
         try {
-            cp = new ConnectionPool(configurationContext);
+            cp = new ConnectionPool(configurationContext, settings.getWriterConnections(), settings.getReaderConnections(), settings.getMaxConnections());
             TableCreator.createBasicTables(cp);
-            keyCache = new ForeignKeyCache(cp);
+            worldRegistry = new WorldRegistry(cp);
+            dictionaryLog = new DictionaryLog(cp);
+            keyCache = new ForeignKeyCache(cp, settings.getActorCacheSize());
+            keyResolver = new KeyResolver(cp, keyCache);
+            registrar = new PlayerRegistrar(cp, keyCache);
+            // Lanes, replays and imports all share these, so writers never hold more connections than this
+            writerSessions = new WriterSessionPool(cp, settings.getWriterConnections());
+            deadLetters = new DeadLetterStore(settings.getDeadLetterFolder());
+            committer = new BatchCommitter(writerSessions, deadLetters);
+            writerLanes = new WriterLanes(committer, deadLetters, settings.isWriterLanePerTable(), new Runnable() {
+
+                @Override
+                public void run() {
+                    signalWriteProgress();
+                }
+            });
+            codec = new MetadataCodec(cp, maintenanceThread);
+            metadataStore = new MetadataStore(cp, codec);
+            recordReader = new SqlRecordReader(codec, metadataStore);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
 
-        databaseName = configurationContext.getDatabaseName();
-
         logger = configurationContext.getLogger();
+        coalescer = new RowCoalescer(settings.getCoalesceRules(), settings.getCoalesceWindowMillis());
         cache = new RowCache(maxCacheSize);
+
+        maintenanceThread.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                committer.replayDeferred();
+            }
+        }, settings.getDeadLetterReplayMinutes(), settings.getDeadLetterReplayMinutes(), TimeUnit.MINUTES);
+
+        if (settings.getDictionaryPollSeconds() > 0) {
+            maintenanceThread.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        dictionaryLog.poll(keyCache);
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, settings.getDictionaryPollSeconds(), settings.getDictionaryPollSeconds(), TimeUnit.SECONDS);
+        }
+
+        SlowQueryLog log = null;
+        if (settings.getSlowQueryMillis() >= 0 || settings.getSlowQuerySampleRate() > 0) {
+            try {
+                log = new SlowQueryLog(settings.getLogFolder(), settings.getSlowQueryMillis(), settings.getSlowQuerySampleRate(), settings.isExplainSlowQueries(),
+                                       settings.getSlowQueryLogFileSize(), settings.getSlowQueryLogFiles());
+            } catch (IOException e) {
+                logger.warning("Unable to open the slow query log: " + e.getMessage());
+            }
+        }
+        slowQueryLog = log;
+
+        archive = new ArchiveCatalog(settings.getArchiveFolder());
+        if (settings.getArchiveAfterDays() > 0) {
+            maintenanceThread.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    new HistoryArchiver(cp, codec, metadataStore, archive, worldRegistry, getWorlds(), settings.getArchiveAfterDays(), TimeUnit.DAYS).run();
+                }
+            }, settings.getArchiveIntervalMinutes(), settings.getArchiveIntervalMinutes(), TimeUnit.MINUTES);
+        }
     }
 
+    /**
+     * Accepts the row unless it is shed because the backend is overloaded,
+     * see {@link #trySubmit(RowEntry)}.
+     */
     @Override
     public void submit(RowEntry data) {
+        trySubmit(data);
+    }
+
+    /**
+     * Accepts the row unless the current {@link WriteState} sheds rows of
+     * its action's priority, or the write queue is full. Never blocks.
+     *
+     * @return Whether the row was accepted.
+     */
+    public boolean trySubmit(RowEntry data) {
+        TrafficCapture capture = this.capture;
+        if (capture != null) {
+            capture.record(data);
+        }
+
+        if (!getWriteState().accepts(settings.getPriority(data.getAction()))) {
+            shedRows.incrementAndGet();
+            return false;
+        }
+
+        // A full cache means the write queue had no room for it last time
+        if (cache.isFull() && !flushCache(true)) {
+            shedRows.incrementAndGet();
+            return false;
+        }
+
         try {
             cache.add(data);
         } finally {
@@ -68,6 +239,73 @@ public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
                 flushCache(true);
             }
         }
+        return true;
+    }
+
+    /**
+     * Waits up to {@code timeout} for the backlog to drop back to
+     * {@link WriteState#ACCEPTING} before trying to submit the row.
+     *
+     * @return Whether the row was accepted.
+     */
+    public boolean submit(RowEntry data, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (writeProgress) {
+            long remaining;
+            while (getWriteState() != WriteState.ACCEPTING && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(writeProgress, remaining);
+            }
+        }
+
+        return trySubmit(data);
+    }
+
+    /**
+     * Returns the number of rows submitted but not yet written.
+     */
+    public int getBacklog() {
+        return cache.getSize() + queuedRows.get() + heldRows.size() + writerLanes.getBacklog();
+    }
+
+    public WriteState getWriteState() {
+        int backlog = getBacklog();
+        if (backlog >= settings.getSheddingBacklog()) {
+            return WriteState.SHEDDING;
+        } else if (backlog >= settings.getSlowingBacklog()) {
+            return WriteState.SLOWING;
+        }
+        return WriteState.ACCEPTING;
+    }
+
+    /**
+     * Returns the number of rows that were shed since startup.
+     */
+    public long getShedCount() {
+        return shedRows.get();
+    }
+
+    /**
+     * Returns the number of redundant rows dropped before writing since
+     * startup.
+     */
+    public long getCoalescedCount() {
+        return coalescer.getDroppedCount();
+    }
+
+    /**
+     * Starts recording every submitted row, shed or not, to {@code capture};
+     * null stops recording. The previous capture is not closed.
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Returns the current state of the connection pool and how it has been
+     * resized since startup.
+     */
+    public PoolStats getPoolStats() {
+        return cp.getStats();
     }
 
     @Override
@@ -76,10 +314,26 @@ public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
         flushCache(false);
         InsightResultSet results;
 
+        long start = System.nanoTime();
+        SqlSelectionQuery query = SqlSelectionQueryBuilder.build(params, worldRegistry);
+        long built = System.nanoTime();
+
         try (Connection c = cp.getConnection();
-             PreparedStatement stmt = SqlSelectionQueryBuilder.build(params).getPreparedStatement(c)) {
+             PreparedStatement stmt = query.getPreparedStatement(c)) {
             stmt.execute();
-            results = new InsightSqlResultSet(stmt.getResultSet(), params);
+            long executed = System.nanoTime();
+
+            List<InsightRecord<?>> records;
+            if (archive.covers(params)) {
+                records = withArchivedRecords(params, recordReader.read(stmt.getResultSet(), SqlSelectionQueryBuilder.LOOKUP_LIMIT, c));
+            } else {
+                records = recordReader.read(stmt.getResultSet(), Integer.MAX_VALUE, c);
+            }
+            results = InsightSqlResultSet.of(params, records);
+
+            if (slowQueryLog != null) {
+                slowQueryLog.record(params, query, built - start, executed - built, System.nanoTime() - executed, records.size(), c);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -88,6 +342,109 @@ public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
         return results;
     }
 
+    /**
+     * Fills a page of live records up with archived ones. Archived rows are
+     * all older than the rows left in the live tables, so the archive only
+     * has to supply whatever is left of the page after (or before, when the
+     * order is reversed) the live rows.
+     */
+    private List<InsightRecord<?>> withArchivedRecords(QueryParameters params, List<InsightRecord<?>> live) throws IOException {
+        int limit = SqlSelectionQueryBuilder.LOOKUP_LIMIT;
+        List<HistoryRow> archived = archive.search(params, params.isOrderReversed() ? limit : limit - live.size());
+        List<InsightRecord<?>> records = new ArrayList<>(limit);
+
+        if (params.isOrderReversed()) {
+            records.addAll(SqlRecordReader.toDecodedRecords(archived));
+            records.addAll(live.subList(0, Math.min(live.size(), limit - records.size())));
+        } else {
+            records.addAll(live);
+            records.addAll(SqlRecordReader.toDecodedRecords(archived));
+        }
+
+        return records;
+    }
+
+    /**
+     * Estimates how many rows {@code params} would match, in a fraction of
+     * the time the lookup itself could take. Returns {@code null} if the
+     * estimate could not be made.
+     */
+    public RowCountEstimate estimate(QueryParameters params) {
+        try (Connection c = cp.getConnection()) {
+            return RowCountEstimator.estimate(c, params, worldRegistry);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the hour from which aggregate lookups count every row of the
+     * world, or null if the world has no rollups.
+     */
+    public LocalDateTime getRollupSince(String world) {
+        return worldRegistry.getRollupSince(world);
+    }
+
+    /**
+     * Answers an aggregate lookup from the activity rollups, without reading
+     * the world tables. Rows that are still waiting to be written are counted
+     * once they reach the database, and rows from before
+     * {@link #getRollupSince(String)} or dropped by coalescing aren't counted
+     * at all.
+     */
+    public List<ActivityCount> aggregate(ActivityQuery query) {
+        try (Connection c = cp.getConnection()) {
+            return ActivityRollup.query(c, query, worldRegistry);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Copies the history of every world into chunk files under {@code folder},
+     * for {@link #importHistory} on another database. Returns the number of
+     * rows exported. An interrupted export picks up where it left off when
+     * run again.
+     */
+    public long exportHistory(File folder, int threads) throws SQLException, IOException, InterruptedException {
+        flushCache(false);
+        return new HistoryExporter(cp, codec, metadataStore, folder, worldRegistry, getWorlds(), threads).run();
+    }
+
+    /**
+     * Loads the chunk files written by {@link #exportHistory} into this
+     * database, creating worlds as needed. Returns the number of rows
+     * imported. Chunks that were imported before are skipped.
+     */
+    public long importHistory(File folder, int threads) throws SQLException, IOException, InterruptedException {
+        HistoryLoader loader = new HistoryLoader(cp, writerSessions, keyCache, keyResolver, codec, metadataStore, worldRegistry);
+        return new HistoryImporter(cp, worldRegistry, loader, folder, threads, settings.isTimeClusteredTables()).run();
+    }
+
+    /**
+     * Streams every row matching {@code params} rather than the first page of
+     * them, for consumers such as rollbacks that need to see all of history.
+     * The caller must close the returned cursor.
+     */
+    public ReplayCursor replay(QueryParameters params) {
+        return replay(params, ReplayCursor.DEFAULT_CHUNK_SIZE);
+    }
+
+    public ReplayCursor replay(QueryParameters params, int chunkSize) {
+        flushCache(false);
+        return new ReplayCursor(cp, SqlSelectionQueryBuilder.buildUnbounded(params, worldRegistry), recordReader, chunkSize, replayThreads);
+    }
+
+    /**
+     * Queues every row submitted so far and waits for them to be written,
+     * giving up on the writer lanes after a few seconds.
+     */
+    public void flush() {
+        flushCache(false);
+    }
+
     @Override
     public void suggestFlush() {
         if (cache.getSize() > targetCacheSize) {
@@ -95,22 +452,114 @@ public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
         }
     }
 
-    private void flushCache(boolean async) {
+    /**
+     * Queues the cache for writing behind the dumpers already queued, so rows
+     * are written in the order they were submitted. If {@code async} is set,
+     * returns false right away when the write queue is full, leaving the rows
+     * in the cache. Otherwise waits for room and then for everything queued
+     * so far to be written.
+     *
+     * @return Whether the cache was queued.
+     */
+    private boolean flushCache(boolean async) {
+        Future<?> queued = null;
+
         if (cache.isDirty()) {
-            if (async) {
+            final int rows = cache.getSize();
+            final DatabaseDumper dumper = newDumper();
+            queued = enqueue(new Runnable() {
+
+                @Override
+                public void run() {
+                    dumper.run();
+                }
+            }, rows, !async);
+
+            if (queued == null) {
+                return false; // The rows stay in the cache
+            }
+            cache = new RowCache(maxCacheSize);
+        } else if (!async) {
+            // Still wait for the dumpers queued before
+            queued = enqueue(NO_OP, 0, true);
+        }
+
+        if (!async && queued != null) {
+            try {
+                queued.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+            writerLanes.awaitWritten(SYNC_FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Hands a dumper to the write thread. If the queue is full and
+     * {@code wait} is set, waits for room rather than throwing the rows away.
+     * Returns null if the dumper wasn't queued.
+     */
+    private Future<?> enqueue(final Runnable dumper, final int rows, boolean wait) {
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
                 try {
-                    writeThreads.execute(new DatabaseDumper(cp, cache, keyCache));
-                } catch (RejectedExecutionException e) {
-                    System.err.println("Throwing away RowCache because our queue is full!"); // TODO write this to disk
+                    dumper.run();
+                } finally {
+                    queuedRows.addAndGet(-rows);
+                    signalWriteProgress();
                 }
-            } else {
-                new DatabaseDumper(cp, cache, keyCache).run();
             }
+        };
 
-            cache = new RowCache(maxCacheSize);
+        queuedRows.addAndGet(rows);
+        boolean interrupted = false;
+        try {
+            synchronized (writeProgress) {
+                while (true) {
+                    try {
+                        return writeThreads.submit(task);
+                    } catch (RejectedExecutionException e) {
+                        if (writeThreads.isShutdown()) {
+                            queuedRows.addAndGet(-rows);
+                            logger.warning("Write thread is shut down, unable to write " + rows + " rows");
+                            return null;
+                        }
+                        if (!wait) {
+                            queuedRows.addAndGet(-rows);
+                            return null;
+                        }
+                    }
+
+                    try {
+                        writeProgress.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // Keep waiting, the rows have nowhere else to go
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void signalWriteProgress() {
+        synchronized (writeProgress) {
+            writeProgress.notifyAll();
         }
     }
 
+    private DatabaseDumper newDumper() {
+        return new DatabaseDumper(cp, cache, keyCache, registrar, codec, metadataStore, worldRegistry, writerLanes, coalescer, keyResolver, deadLetters, heldRows);
+    }
+
     @Override
     public QueryParameterBuilder newQueryBuilder() {
         return new QueryParameterBuilder();
@@ -118,123 +567,94 @@ public class SqlReadWriteBackend implements ReadBackend, WriteBackend {
 
     @Override
     public Set<String> getWorlds() {
-        Set<String> worlds = new HashSet<String>(10);
-        try (Connection conn = cp.getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT REPLACE(`TABLE_NAME`, '_blocks', '') FROM `INFORMATION_SCHEMA`.`TABLES` WHERE `TABLE_SCHEMA` = ? AND `TABLE_NAME` LIKE \"%_blocks%\"");) {
-            stmt.setString(1, databaseName);
-            stmt.execute();
-            ResultSet rs = stmt.getResultSet();
-            while (rs.next()) {
-                worlds.add(rs.getString(1));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return Collections.emptySet();
-        }
-
-        return worlds;
+        return worldRegistry.getWorlds();
     }
 
     @Override
     public void close() {
         flushCache(false);
+        replayThreads.shutdownNow();
+        maintenanceThread.shutdownNow();
+        upgradeThread.shutdownNow();
         writeThreads.shutdown();
-        boolean cleanShutdown;
+
+        // Every queued dumper ends in either the lanes or the dead letter store, so let them all finish
         try {
-            cleanShutdown = writeThreads.awaitTermination(1, TimeUnit.SECONDS);
+            while (!writeThreads.awaitTermination(SYNC_FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.info("Waiting for " + queuedRows.get() + " rows to be written");
+            }
         } catch (InterruptedException e) {
-            cleanShutdown = false;
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while shutting down, " + queuedRows.get() + " queued rows are lost");
         }
 
-        if (!cleanShutdown) {
-            logger.severe("Problem shutting down cleanly"); // TODO
+        if (!heldRows.isEmpty()) {
+            logger.severe("Unable to resolve the keys of " + heldRows.size() + " rows, they are lost");
         }
 
+        registrar.close();
+        writerLanes.close();
+        writerSessions.close();
         cp.close();
+
+        if (slowQueryLog != null) {
+            slowQueryLog.close();
+        }
     }
 
     @Override
     public void registerPlayer(String playerName, UUID uuid) {
-        boolean insert = true; // Assume we haven't seen the player before
-
-        keyCache.acquireReadLock();
-        try {
-
-            if (keyCache.containsActor(playerName) && !playerName.equals(keyCache.getActor(uuid))) {
-                // The player we knew about has changed their name and someone else has taken their old name
-                String newName = PlayerUtil.getCurrentName(keyCache.getUUID(playerName));
-                keyCache.releaseReadLock();
+        registrar.register(playerName, uuid);
+    }
 
-                try {
-                    registerPlayer(newName, keyCache.getUUID(playerName));
-                } finally {
-                    keyCache.acquireReadLock();
-                }
+    @Override
+    public void registerWorld(String worldName) {
+        if (!worldRegistry.isCurrent(worldName)) {
+            try {
+                TableCreator.createWorldTables(cp, worldRegistry, worldName, settings.isTimeClusteredTables());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
             }
+        }
 
-            if (keyCache.containsUUID(uuid)) {
-                if (keyCache.getActor(uuid).equals(playerName)) {
-                    return; // Information is correct
-                } else {
-                    insert = false; // We have seen this UUID before but with a different name
-                }
-            }
-        } finally {
-            keyCache.releaseReadLock();
+        if (!worldRegistry.hasMetadataIds(worldName) || (settings.isTimeClusteredTables() && !worldRegistry.isTimeClustered(worldName))) {
+            scheduleTableUpgrade(worldName);
         }
+    }
 
-        keyCache.acquireWriteLock();
-        try {
-            if (insert) {
-                if (!keyCache.containsUUID(uuid)) {
-                    try (Connection conn = cp.getConnection();
-                         PreparedStatement insertActor = conn.prepareStatement("INSERT INTO `actors`(`name`, `uuid`) VALUES (?, ?)", PreparedStatement.RETURN_GENERATED_KEYS);) {
-                        insertActor.setString(1, playerName);
-                        insertActor.setBytes(2, getBytes(uuid));
-                        insertActor.executeUpdate();
-
-                        ResultSet rs = insertActor.getGeneratedKeys();
-                        rs.next();
-                        keyCache.addActor(playerName, rs.getInt(1));
-                    }
+    /**
+     * Upgrades a world's existing tables in the background: adds the column
+     * that references stored metadata, and converts them to the time
+     * clustered layout if configured. Rows keep being written meanwhile, with
+     * their metadata inlined until the column exists.
+     */
+    private void scheduleTableUpgrade(final String worldName) {
+        if (!upgradingWorlds.add(worldName)) {
+            return; // Already queued
+        }
 
-                    keyCache.addUUID(uuid, playerName);
-                }
-            } else {
-                String oldActor = keyCache.getActor(uuid);
-                if (!oldActor.equals(playerName)) {
-                    try (Connection conn = cp.getConnection();
-                         PreparedStatement updateActor = conn.prepareStatement("UPDATE `actors` SET `name` = ? WHERE `uuid` = ? ");) {
-                        updateActor.setString(1, playerName);
-                        updateActor.setBytes(2, getBytes(uuid));
-                        updateActor.executeUpdate();
+        upgradeThread.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (!worldRegistry.hasMetadataIds(worldName)) {
+                        logger.info("Adding metadata references to the tables of " + worldName);
+                        TableCreator.addMetadataIds(cp, worldRegistry, worldName);
                     }
 
-                    keyCache.addActor(playerName, keyCache.removeActor(oldActor));
-                    keyCache.addUUID(uuid, playerName);
+                    if (settings.isTimeClusteredTables() && !worldRegistry.isTimeClustered(worldName)) {
+                        logger.info("Converting the tables of " + worldName + " to the time clustered layout");
+                        TableCreator.clusterByTime(cp, worldRegistry, worldName);
+                        logger.info("Finished converting the tables of " + worldName);
+                    }
+                } catch (SQLException e) {
+                    logger.warning("Unable to upgrade the tables of " + worldName + ": " + e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    upgradingWorlds.remove(worldName);
                 }
             }
-        } catch (SQLException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } finally {
-            keyCache.releaseWriteLock();
-        }
-    }
-
-    @Override
-    public void registerWorld(String worldName) {
-        try {
-            TableCreator.createWorldTables(cp, worldName);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static byte[] getBytes(UUID uuid) {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
+        });
     }
 }
@@ -0,0 +1,27 @@
+package com.amshulman.insight.backend;
+
+/**
+ * How {@link SqlReadWriteBackend} is coping with the rows submitted to it.
+ */
+public enum WriteState {
+
+    /** Every row is accepted. */
+    ACCEPTING,
+
+    /** The backlog is growing, rows with {@link ActionPriority#LOW} priority are shed. */
+    SLOWING,
+
+    /** The backlog is critical, only rows with {@link ActionPriority#HIGH} priority are accepted. */
+    SHEDDING;
+
+    public boolean accepts(ActionPriority priority) {
+        switch (this) {
+            case ACCEPTING:
+                return true;
+            case SLOWING:
+                return priority != ActionPriority.LOW;
+            default:
+                return priority == ActionPriority.HIGH;
+        }
+    }
+}
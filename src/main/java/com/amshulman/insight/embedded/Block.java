@@ -0,0 +1,88 @@
+package com.amshulman.insight.embedded;
+
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import com.amshulman.insight.sql.QueryFilter;
+
+/**
+ * Index entry for a run of consecutive records in a segment: the time and
+ * coordinate bounds of the records plus the set of chunks they fall in.
+ * Blocks are only changed by the writer while they are the last one in the
+ * log; readers work on {@link #copy()}s of that one.
+ */
+final class Block {
+
+    final int start;
+    int end;
+    int count;
+
+    long minDatetime = Long.MAX_VALUE, maxDatetime = Long.MIN_VALUE;
+    int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+    int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+    int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+    final TLongSet chunks;
+
+    Block(int start) {
+        this(start, new TLongHashSet());
+    }
+
+    private Block(int start, TLongSet chunks) {
+        this.start = start;
+        this.end = start;
+        this.chunks = chunks;
+    }
+
+    void add(int recordEnd, long datetime, int x, int y, int z) {
+        end = recordEnd;
+        ++count;
+
+        minDatetime = Math.min(minDatetime, datetime);
+        maxDatetime = Math.max(maxDatetime, datetime);
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+        minZ = Math.min(minZ, z);
+        maxZ = Math.max(maxZ, z);
+        chunks.add(chunkKey(x >> 4, z >> 4));
+    }
+
+    boolean mayMatch(QueryFilter filter) {
+        if (count == 0 || !filter.mayMatch(minDatetime, maxDatetime, minX, maxX, minY, maxY, minZ, maxZ)) {
+            return false;
+        }
+
+        if (!filter.isLocationSet()) {
+            return true;
+        }
+
+        for (TLongIterator iter = chunks.iterator(); iter.hasNext();) {
+            long key = iter.next();
+            if (filter.mayMatchChunk((int) (key >> 32), (int) key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Block copy() {
+        Block copy = new Block(start, new TLongHashSet(chunks));
+        copy.end = end;
+        copy.count = count;
+        copy.minDatetime = minDatetime;
+        copy.maxDatetime = maxDatetime;
+        copy.minX = minX;
+        copy.maxX = maxX;
+        copy.minY = minY;
+        copy.maxY = maxY;
+        copy.minZ = minZ;
+        copy.maxZ = maxZ;
+        return copy;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+}
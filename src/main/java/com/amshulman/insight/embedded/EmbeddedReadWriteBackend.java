@@ -0,0 +1,169 @@
+package com.amshulman.insight.embedded;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amshulman.insight.backend.ReadBackend;
+import com.amshulman.insight.backend.WriteBackend;
+import com.amshulman.insight.query.QueryParameterBuilder;
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.results.InsightResultSet;
+import com.amshulman.insight.results.InsightSqlResultSet;
+import com.amshulman.insight.results.SqlRecordReader;
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.QueryFilter;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder;
+import com.amshulman.insight.sql.WorldTable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Backend for servers without a database. Each world's rows go to an append
+ * only, memory mapped log in its own folder, indexed by time and chunk, and
+ * lookups are answered with the same filtering and ordering as
+ * {@link com.amshulman.insight.backend.SqlReadWriteBackend}.
+ * <p>
+ * Names are stored as they were at the time a row was logged; there is no
+ * actor table, so players who change their name show up under both names.
+ */
+public class EmbeddedReadWriteBackend implements ReadBackend, WriteBackend {
+
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private final File folder;
+    private final ConcurrentMap<String, WorldLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Insight log sync").setDaemon(true).build());
+
+    public EmbeddedReadWriteBackend(File folder) {
+        this.folder = folder;
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new RuntimeException("Unable to create " + folder);
+        }
+
+        for (File worldFolder : folder.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        })) {
+            getLog(worldFolder.getName());
+        }
+
+        syncThread.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                suggestFlush();
+            }
+        }, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private WorldLog getLog(String world) {
+        WorldLog log = logs.get(world);
+        if (log != null) {
+            return log;
+        }
+
+        synchronized (logs) {
+            log = logs.get(world);
+            if (log == null) {
+                try {
+                    log = new WorldLog(new File(folder, world), world);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                logs.put(world, log);
+            }
+            return log;
+        }
+    }
+
+    @Override
+    public void submit(RowEntry data) {
+        try {
+            getLog(data.getWorld()).append(HistoryRow.of(data));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public InsightResultSet submit(QueryParameters params) {
+        try {
+            QueryFilter filter = new QueryFilter(params);
+            EnumSet<WorldTable> tables = SqlSelectionQueryBuilder.getTables(params);
+            TopRows top = new TopRows(SqlSelectionQueryBuilder.LOOKUP_LIMIT, params.isOrderReversed());
+
+            for (String world : params.getWorlds()) {
+                WorldLog log = logs.get(world);
+                if (log != null) {
+                    log.search(filter, tables, top);
+                }
+            }
+
+            return InsightSqlResultSet.of(params, SqlRecordReader.toDecodedRecords(top.toList()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Rows are readable as soon as they are submitted, so this only asks the
+     * operating system to write them to disk.
+     */
+    @Override
+    public void suggestFlush() {
+        for (WorldLog log : logs.values()) {
+            try {
+                log.force();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public QueryParameterBuilder newQueryBuilder() {
+        return new QueryParameterBuilder();
+    }
+
+    @Override
+    public Set<String> getWorlds() {
+        return Collections.unmodifiableSet(new HashSet<>(logs.keySet()));
+    }
+
+    @Override
+    public void close() {
+        syncThread.shutdownNow();
+
+        for (WorldLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void registerPlayer(String playerName, UUID uuid) {}
+
+    @Override
+    public void registerWorld(String worldName) {
+        getLog(worldName);
+    }
+}
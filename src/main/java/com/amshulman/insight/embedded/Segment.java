@@ -0,0 +1,210 @@
+package com.amshulman.insight.embedded;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * One memory mapped file of a world's log. Files are created at their full
+ * size and filled from the front; every record is its length followed by its
+ * body, and the length is written last so a record only becomes visible once
+ * it is complete. A zero length marks the end of the data.
+ * <p>
+ * Only the writer changes the mapping, and readers only look at records
+ * below an end offset they got from the writer, so reads need no locking.
+ */
+final class Segment implements Closeable {
+
+    static final int HEADER_SIZE = 16;
+    static final int BLOCK_RECORDS = 1024;
+
+    private static final int MAGIC = 0x49454D42; // IEMB
+    private static final int VERSION = 1;
+
+    // Offsets into a record body
+    private static final int TABLE = 0;
+    private static final int DATETIME = 1;
+    private static final int X = 9;
+    private static final int Y = 13;
+    private static final int Z = 17;
+    private static final int ACTOR = 21;
+    private static final int ACTION = 25;
+    private static final int NAMESPACE = 29;
+    private static final int NAME = 33;
+    private static final int SUBTYPE = 37;
+    private static final int ACTEE = 39;
+    private static final int METADATA_LENGTH = 43;
+    private static final int METADATA = 47;
+
+    private static final WorldTable[] TABLES = WorldTable.values();
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final List<Block> blocks = new ArrayList<>();
+    private int end;
+
+    private Segment(File path, int size) throws IOException {
+        boolean created = !path.exists();
+        file = new RandomAccessFile(path, "rw");
+        if (created) {
+            file.setLength(size);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            file.close();
+            throw new IOException(path + " is not a log segment");
+        }
+
+        end = HEADER_SIZE;
+        scan();
+    }
+
+    static Segment open(File path, int size) throws IOException {
+        return new Segment(path, size);
+    }
+
+    /**
+     * Rebuilds the block index from the records already in the file.
+     */
+    private void scan() {
+        while (end + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || end + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            int body = end + 4;
+            index(end + 4 + length, buffer.getLong(body + DATETIME), buffer.getInt(body + X), buffer.getInt(body + Y), buffer.getInt(body + Z));
+        }
+    }
+
+    private void index(int recordEnd, long datetime, int x, int y, int z) {
+        Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || block.count == BLOCK_RECORDS) {
+            block = new Block(end);
+            blocks.add(block);
+        }
+
+        block.add(recordEnd, datetime, x, y, z);
+        end = recordEnd;
+    }
+
+    /**
+     * Appends a row whose strings have already been assigned ids. Returns
+     * false without writing anything if the segment is full.
+     */
+    boolean append(HistoryRow row, int actor, int action, int namespace, int name, int actee) {
+        byte[] metadata = row.getMetadata();
+        int length = METADATA + (metadata == null ? 0 : metadata.length);
+        if (end + 4 + length > buffer.capacity()) {
+            return false;
+        }
+
+        int body = end + 4;
+        buffer.put(body + TABLE, (byte) row.getTable().ordinal());
+        buffer.putLong(body + DATETIME, row.getDatetime());
+        buffer.putInt(body + X, row.getX());
+        buffer.putInt(body + Y, row.getY());
+        buffer.putInt(body + Z, row.getZ());
+        buffer.putInt(body + ACTOR, actor);
+        buffer.putInt(body + ACTION, action);
+        buffer.putInt(body + NAMESPACE, namespace);
+        buffer.putInt(body + NAME, name);
+        buffer.putShort(body + SUBTYPE, row.getMaterialSubtype());
+        buffer.putInt(body + ACTEE, actee);
+        buffer.putInt(body + METADATA_LENGTH, metadata == null ? -1 : metadata.length);
+        if (metadata != null) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(body + METADATA);
+            view.put(metadata);
+        }
+        buffer.putInt(end, length);
+
+        index(body + length, row.getDatetime(), row.getX(), row.getY(), row.getZ());
+        return true;
+    }
+
+    boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    /**
+     * Returns the blocks written so far. The last block may still grow, so it
+     * is copied; the others never change again.
+     */
+    List<Block> getBlocks() {
+        List<Block> snapshot = new ArrayList<>(blocks);
+        if (!snapshot.isEmpty()) {
+            int last = snapshot.size() - 1;
+            snapshot.set(last, snapshot.get(last).copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Calls {@code visitor} for each record of the block whose location and
+     * time pass the quick checks, then decodes and hands over the rest.
+     */
+    void read(Block block, String world, StringTable strings, RecordVisitor visitor) {
+        ByteBuffer view = buffer.duplicate();
+
+        for (int offset = block.start; offset < block.end;) {
+            int length = buffer.getInt(offset);
+            int body = offset + 4;
+            offset = body + length;
+
+            long datetime = buffer.getLong(body + DATETIME);
+            int x = buffer.getInt(body + X);
+            int y = buffer.getInt(body + Y);
+            int z = buffer.getInt(body + Z);
+            if (!visitor.accept(TABLES[buffer.get(body + TABLE)], datetime, x, y, z)) {
+                continue;
+            }
+
+            byte[] metadata = null;
+            int metadataLength = buffer.getInt(body + METADATA_LENGTH);
+            if (metadataLength >= 0) {
+                metadata = new byte[metadataLength];
+                view.position(body + METADATA);
+                view.get(metadata);
+            }
+
+            visitor.visit(new HistoryRow(TABLES[buffer.get(body + TABLE)], datetime, strings.get(buffer.getInt(body + ACTOR)), strings.get(buffer.getInt(body + ACTION)),
+                                         world, x, y, z, strings.get(buffer.getInt(body + NAMESPACE)), strings.get(buffer.getInt(body + NAME)),
+                                         buffer.getShort(body + SUBTYPE), strings.get(buffer.getInt(body + ACTEE)), metadata));
+        }
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    interface RecordVisitor {
+
+        /**
+         * Returns whether a record with these fields is worth decoding.
+         */
+        boolean accept(WorldTable table, long datetime, int x, int y, int z);
+
+        void visit(HistoryRow row);
+    }
+}
@@ -0,0 +1,94 @@
+package com.amshulman.insight.embedded;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only dictionary of the strings (actors, actions, materials) used by
+ * one world's log, so records only have to store ids.
+ */
+final class StringTable implements Closeable {
+
+    static final int NULL_ID = -1;
+
+    private final List<String> strings = new ArrayList<>();
+    private final TObjectIntMap<String> ids = new TObjectIntHashMap<>(1024, 0.5f, NULL_ID);
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+
+    StringTable(File path) throws IOException {
+        if (path.exists()) {
+            byte[] contents = Files.readAllBytes(path.toPath());
+            ByteArrayInputStream bytes = new ByteArrayInputStream(contents);
+            DataInputStream in = new DataInputStream(bytes);
+            int valid = 0;
+
+            try {
+                while (bytes.available() > 0) {
+                    String s = in.readUTF();
+                    ids.put(s, strings.size());
+                    strings.add(s);
+                    valid = contents.length - bytes.available();
+                }
+            } catch (EOFException e) {
+                // Drop the torn final entry so new ones aren't appended after it
+                try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+
+        file = new FileOutputStream(path, true);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    /**
+     * Returns the id of {@code s}, adding it if needed. New strings are
+     * handed to the operating system straight away, ahead of any record that
+     * refers to them.
+     */
+    synchronized int getId(String s) throws IOException {
+        if (s == null) {
+            return NULL_ID;
+        }
+
+        int id = ids.get(s);
+        if (id == NULL_ID) {
+            id = strings.size();
+            out.writeUTF(s);
+            out.flush();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    synchronized String get(int id) {
+        // Ids past the end can only come from records that outlived the strings in a crash
+        return id < 0 || id >= strings.size() ? null : strings.get(id);
+    }
+
+    synchronized void sync() throws IOException {
+        out.flush();
+        file.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
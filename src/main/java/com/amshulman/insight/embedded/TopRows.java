@@ -0,0 +1,68 @@
+package com.amshulman.insight.embedded;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.amshulman.insight.sql.HistoryRow;
+
+/**
+ * Keeps the first {@code limit} rows in datetime order, newest first unless
+ * {@code ascending}, the way {@code ORDER BY `datetime` ... LIMIT} would.
+ */
+final class TopRows {
+
+    private static final Comparator<HistoryRow> OLDEST_FIRST = new Comparator<HistoryRow>() {
+
+        @Override
+        public int compare(HistoryRow o1, HistoryRow o2) {
+            return Long.compare(o1.getDatetime(), o2.getDatetime());
+        }
+    };
+
+    private final int limit;
+    private final boolean ascending;
+    private final Comparator<HistoryRow> worstFirst;
+    private final PriorityQueue<HistoryRow> rows;
+
+    TopRows(int limit, boolean ascending) {
+        this.limit = limit;
+        this.ascending = ascending;
+        this.worstFirst = ascending ? Collections.reverseOrder(OLDEST_FIRST) : OLDEST_FIRST;
+        this.rows = new PriorityQueue<>(Math.min(limit, 1024), worstFirst);
+    }
+
+    boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Returns whether a row from within the given time range could still
+     * make it into the result.
+     */
+    boolean mayImprove(long minDatetime, long maxDatetime) {
+        if (rows.size() < limit) {
+            return true;
+        }
+
+        long worst = rows.peek().getDatetime();
+        return ascending ? minDatetime < worst : maxDatetime > worst;
+    }
+
+    void offer(HistoryRow row) {
+        if (rows.size() < limit) {
+            rows.add(row);
+        } else if (worstFirst.compare(row, rows.peek()) > 0) {
+            rows.poll();
+            rows.add(row);
+        }
+    }
+
+    List<HistoryRow> toList() {
+        List<HistoryRow> list = new ArrayList<>(rows);
+        Collections.sort(list, Collections.reverseOrder(worstFirst));
+        return list;
+    }
+}
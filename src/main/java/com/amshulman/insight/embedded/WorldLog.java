@@ -0,0 +1,161 @@
+package com.amshulman.insight.embedded;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.QueryFilter;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * Every row logged in one world, kept as a sequence of {@link Segment}s in the
+ * world's folder together with the {@link StringTable} they refer to. Rows are
+ * appended in the order they are submitted, which is close enough to
+ * chronological order that the per-block time bounds stay narrow.
+ */
+final class WorldLog implements Closeable {
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    private final String world;
+    private final File folder;
+    private final StringTable strings;
+    private final List<Segment> segments = new ArrayList<>();
+
+    WorldLog(File folder, String world) throws IOException {
+        this.world = world;
+        this.folder = folder;
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        strings = new StringTable(new File(folder, "strings.dat"));
+
+        TreeMap<Integer, File> files = new TreeMap<>();
+        for (File file : folder.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_EXTENSION);
+            }
+        })) {
+            String name = file.getName();
+            try {
+                files.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), file);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+        }
+
+        for (File file : files.values()) {
+            segments.add(Segment.open(file, SEGMENT_SIZE));
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+    }
+
+    private void roll() throws IOException {
+        segments.add(Segment.open(new File(folder, segments.size() + SEGMENT_EXTENSION), SEGMENT_SIZE));
+    }
+
+    synchronized void append(HistoryRow row) throws IOException {
+        int actor = strings.getId(row.getActor());
+        int action = strings.getId(row.getAction());
+        int namespace = strings.getId(row.getMaterialNamespace());
+        int name = strings.getId(row.getMaterialName());
+        int actee = strings.getId(row.getActee());
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (!segment.append(row, actor, action, namespace, name, actee)) {
+            if (segment.isEmpty()) {
+                throw new IOException("Row is too large for a log segment");
+            }
+
+            roll();
+            segments.get(segments.size() - 1).append(row, actor, action, namespace, name, actee);
+        }
+    }
+
+    /**
+     * Offers every row matching the filter to {@code top}. Blocks are visited
+     * starting from the end of the log the lookup is ordered from, and are
+     * skipped once they can no longer contribute to the result.
+     */
+    void search(QueryFilter filter, final EnumSet<WorldTable> tables, final TopRows top) {
+        List<Segment> segmentSnapshot;
+        List<List<Block>> blockSnapshot = new ArrayList<>();
+        synchronized (this) {
+            segmentSnapshot = new ArrayList<>(segments);
+            for (Segment segment : segmentSnapshot) {
+                blockSnapshot.add(segment.getBlocks());
+            }
+        }
+
+        if (!top.isAscending()) {
+            Collections.reverse(segmentSnapshot);
+            Collections.reverse(blockSnapshot);
+        }
+
+        Segment.RecordVisitor visitor = new FilteringVisitor(filter, tables, top);
+        for (int i = 0; i < segmentSnapshot.size(); ++i) {
+            List<Block> blocks = blockSnapshot.get(i);
+            if (!top.isAscending()) {
+                Collections.reverse(blocks);
+            }
+
+            for (Block block : blocks) {
+                if (top.mayImprove(block.minDatetime, block.maxDatetime) && block.mayMatch(filter)) {
+                    segmentSnapshot.get(i).read(block, world, strings, visitor);
+                }
+            }
+        }
+    }
+
+    synchronized void force() throws IOException {
+        strings.sync();
+        segments.get(segments.size() - 1).force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        strings.close();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private static final class FilteringVisitor implements Segment.RecordVisitor {
+
+        private final QueryFilter filter;
+        private final EnumSet<WorldTable> tables;
+        private final TopRows top;
+
+        FilteringVisitor(QueryFilter filter, EnumSet<WorldTable> tables, TopRows top) {
+            this.filter = filter;
+            this.tables = tables;
+            this.top = top;
+        }
+
+        @Override
+        public boolean accept(WorldTable table, long datetime, int x, int y, int z) {
+            return tables.contains(table) && top.mayImprove(datetime, datetime) && filter.mayMatch(datetime, datetime, x, x, y, y, z, z);
+        }
+
+        @Override
+        public void visit(HistoryRow row) {
+            if (filter.matches(row)) {
+                top.offer(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.amshulman.insight.results;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amshulman.insight.sql.ConnectionPool;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder.SqlSelectionQuery;
+
+/**
+ * Streams every row matching a query in chunks of bounded size. Rows are read
+ * through a server-side cursor and decoded on a worker thread while the
+ * consumer processes the previous chunk, with at most {@link #CHUNKS_IN_FLIGHT}
+ * decoded chunks held in memory at once.
+ */
+public final class ReplayCursor implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    static final int CHUNKS_IN_FLIGHT = 2;
+
+    private static final List<InsightRecord<?>> END = Collections.emptyList();
+
+    private final BlockingQueue<List<InsightRecord<?>>> chunks = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+    private final Future<?> worker;
+
+    private volatile boolean closed = false;
+    private volatile SQLException failure;
+    private boolean exhausted = false;
+
+    public ReplayCursor(final ConnectionPool cp, final SqlSelectionQuery query, final SqlRecordReader reader, final int chunkSize, ExecutorService executor) {
+        worker = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try (Connection conn = cp.getConnection();
+                     Connection metadataConnection = cp.getConnection()) {
+                    // PostgreSQL only uses a portal when outside of autocommit
+                    conn.setAutoCommit(false);
+
+                    try (PreparedStatement stmt = query.getPreparedStatement(conn)) {
+                        stmt.setFetchSize(chunkSize);
+
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            List<InsightRecord<?>> chunk;
+                            do {
+                                chunk = reader.read(rs, chunkSize, metadataConnection);
+                                if (!chunk.isEmpty()) {
+                                    chunks.put(chunk);
+                                }
+                            } while (chunk.size() == chunkSize && !closed);
+                        }
+                    }
+
+                    conn.commit();
+                } catch (SQLException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    // Closed while waiting for the consumer
+                } catch (Throwable t) {
+                    // Decoding failures must still wake up the consumer
+                    failure = new SQLException("Unable to decode replay rows", t);
+                } finally {
+                    if (!closed) {
+                        try {
+                            chunks.put(END);
+                        } catch (InterruptedException e) {}
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the next chunk of records, blocking until one is decoded.
+     *
+     * @return The next chunk, or an empty list once every row has been read.
+     * @throws SQLException If reading from the database failed.
+     */
+    public List<InsightRecord<?>> nextChunk() throws SQLException {
+        if (exhausted || closed) {
+            return END;
+        }
+
+        List<InsightRecord<?>> chunk;
+        try {
+            chunk = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for replay rows", e);
+        }
+
+        if (chunk == END) {
+            exhausted = true;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        return chunk;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.cancel(true);
+        chunks.clear();
+    }
+}
@@ -0,0 +1,273 @@
+package com.amshulman.insight.results;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.action.BlockAction;
+import com.amshulman.insight.action.InsightAction;
+import com.amshulman.insight.action.ItemAction;
+import com.amshulman.insight.serialization.ItemMetadata;
+import com.amshulman.insight.serialization.StorageMetadata;
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.InstancePool;
+import com.amshulman.insight.sql.MetadataCodec;
+import com.amshulman.insight.sql.MetadataStore;
+import com.amshulman.insight.types.EventRegistry;
+import com.amshulman.insight.types.InsightLocation;
+import com.amshulman.insight.types.InsightMaterial;
+import com.amshulman.insight.util.SerializationUtil;
+
+/**
+ * Decodes rows produced by {@link com.amshulman.insight.sql.SqlSelectionQueryBuilder}
+ * into records, resolving referenced metadata with one fetch per world.
+ */
+@RequiredArgsConstructor
+public final class SqlRecordReader {
+
+    private final MetadataCodec codec;
+    private final MetadataStore metadataStore;
+
+    /**
+     * Reads up to {@code maxRows} rows from the current position of
+     * {@code rs}. Referenced metadata is fetched over {@code metadataConnection}.
+     * That can be the connection of {@code rs} when its rows were fetched in
+     * full, as lookups' are, but not when they are being streamed.
+     */
+    public List<InsightRecord<?>> read(ResultSet rs, int maxRows, Connection metadataConnection) throws SQLException {
+        List<PendingRow> rows = new ArrayList<>(Math.min(maxRows, 1024));
+        Map<String, TIntSet> referencedMetadata = new HashMap<>();
+        Decoder decoder = new Decoder(codec);
+        Columns columns = new Columns(rs);
+
+        while (rows.size() < maxRows && rs.next()) {
+            PendingRow row = new PendingRow(rs, columns, decoder);
+            rows.add(row);
+
+            int metadataId = rs.getInt(columns.metadataId);
+            if (rs.wasNull()) {
+                row.metadata = rs.getBytes(columns.metadata);
+            } else {
+                row.metadataId = metadataId;
+
+                TIntSet ids = referencedMetadata.get(row.world);
+                if (ids == null) {
+                    ids = new TIntHashSet();
+                    referencedMetadata.put(row.world, ids);
+                }
+                ids.add(metadataId);
+            }
+        }
+
+        Map<String, TIntObjectMap<byte[]>> metadataBlobs = new HashMap<>(referencedMetadata.size());
+        for (Map.Entry<String, TIntSet> entry : referencedMetadata.entrySet()) {
+            metadataBlobs.put(entry.getKey(), metadataStore.fetch(metadataConnection, entry.getKey(), entry.getValue()));
+        }
+
+        List<InsightRecord<?>> records = new ArrayList<>(rows.size());
+        for (PendingRow row : rows) {
+            if (row.metadataId != PendingRow.NO_REFERENCE) {
+                row.metadata = metadataBlobs.get(row.world).get(row.metadataId);
+            }
+
+            records.add(row.toRecord(decoder));
+        }
+
+        return records;
+    }
+
+    /**
+     * Converts a batch of rows held outside of the database, sharing actions
+     * and materials between them.
+     */
+    public static List<InsightRecord<?>> toDecodedRecords(List<HistoryRow> rows) {
+        Decoder decoder = new Decoder(null);
+        List<InsightRecord<?>> records = new ArrayList<>(rows.size());
+        for (HistoryRow row : rows) {
+            records.add(new PendingRow(row, decoder).toRecord(decoder));
+        }
+        return records;
+    }
+
+    /**
+     * Column positions of a lookup's result set, resolved once instead of by
+     * label on every row.
+     */
+    private static final class Columns {
+
+        final int datetime, actor, action, x, y, z, world;
+        final int materialNamespace, materialName, materialSubtype, actee;
+        final int metadataId, metadata;
+
+        Columns(ResultSet rs) throws SQLException {
+            datetime = rs.findColumn("datetime");
+            actor = rs.findColumn("actor");
+            action = rs.findColumn("action");
+            x = rs.findColumn("x");
+            y = rs.findColumn("y");
+            z = rs.findColumn("z");
+            world = rs.findColumn("world");
+            materialNamespace = rs.findColumn("material_namespace");
+            materialName = rs.findColumn("material_name");
+            materialSubtype = rs.findColumn("material_subtype");
+            actee = rs.findColumn("actee");
+            metadataId = rs.findColumn("metadataid");
+            metadata = rs.findColumn("metadata");
+        }
+    }
+
+    /**
+     * Caches for the values that repeat from row to row within one lookup.
+     * Names and materials come from {@link InstancePool}, so records share
+     * them with every other result set; shared metadata is shared between
+     * the records of this lookup.
+     */
+    private static final class Decoder {
+
+        private final MetadataCodec codec;
+        private final Map<String, InsightAction> actions = new HashMap<>();
+        private final Map<String, String> strings = new HashMap<>();
+        private final Map<byte[], StorageMetadata> sharedMetadata = new IdentityHashMap<>();
+
+        private long lastMillis = Long.MIN_VALUE;
+        private LocalDateTime lastDatetime;
+
+        Decoder(MetadataCodec codec) {
+            this.codec = codec;
+        }
+
+        LocalDateTime getDatetime(long millis) {
+            // Rows come out in time order, so neighbours often share a timestamp
+            if (millis != lastMillis) {
+                lastMillis = millis;
+                lastDatetime = new Timestamp(millis).toLocalDateTime();
+            }
+            return lastDatetime;
+        }
+
+        InsightAction getAction(String name) {
+            InsightAction action = actions.get(name);
+            if (action == null && !actions.containsKey(name)) {
+                action = EventRegistry.getActionByName(name);
+                actions.put(name, action);
+            }
+            return action;
+        }
+
+        String getString(String s) {
+            if (s == null) {
+                return null;
+            }
+
+            // Saves going to the shared pool for every row
+            String cached = strings.get(s);
+            if (cached == null) {
+                cached = InstancePool.intern(s);
+                strings.put(cached, cached);
+            }
+            return cached;
+        }
+
+        InsightMaterial getMaterial(String namespace, String name, short subtype) {
+            return InstancePool.getMaterial(namespace, name, subtype);
+        }
+
+        /**
+         * Deserializes metadata. Blobs fetched from the metadata table are
+         * the same array for every row that references them, so those are
+         * only decoded once.
+         */
+        StorageMetadata getMetadata(byte[] metadata, boolean shared) {
+            if (shared && sharedMetadata.containsKey(metadata)) {
+                return sharedMetadata.get(metadata);
+            }
+
+            StorageMetadata meta = null;
+            try {
+                meta = SerializationUtil.deserializeMetadata(codec == null ? metadata : codec.decode(metadata));
+            } catch (IllegalArgumentException e) {
+                // Nothing useful to do here
+            }
+
+            if (shared) {
+                sharedMetadata.put(metadata, meta);
+            }
+            return meta;
+        }
+    }
+
+    private static final class PendingRow {
+
+        static final int NO_REFERENCE = -1;
+
+        final LocalDateTime datetime;
+        final String actor;
+        final InsightAction action;
+        final int x, y, z;
+        final String world;
+        final String materialNamespace;
+        final String materialName;
+        final short materialSubtype;
+        final String actee;
+
+        byte[] metadata;
+        int metadataId = NO_REFERENCE;
+
+        PendingRow(ResultSet rs, Columns columns, Decoder decoder) throws SQLException {
+            datetime = decoder.getDatetime(rs.getTimestamp(columns.datetime).getTime());
+            actor = decoder.getString(rs.getString(columns.actor));
+            action = decoder.getAction(rs.getString(columns.action));
+            x = rs.getInt(columns.x);
+            y = rs.getInt(columns.y);
+            z = rs.getInt(columns.z);
+            world = decoder.getString(rs.getString(columns.world));
+            materialNamespace = rs.getString(columns.materialNamespace);
+            materialName = rs.getString(columns.materialName);
+            materialSubtype = rs.getShort(columns.materialSubtype);
+            actee = decoder.getString(rs.getString(columns.actee));
+        }
+
+        PendingRow(HistoryRow row, Decoder decoder) {
+            datetime = decoder.getDatetime(row.getDatetime());
+            actor = decoder.getString(row.getActor());
+            action = decoder.getAction(row.getAction());
+            x = row.getX();
+            y = row.getY();
+            z = row.getZ();
+            world = decoder.getString(row.getWorld());
+            materialNamespace = row.getMaterialNamespace();
+            materialName = row.getMaterialName();
+            materialSubtype = row.getMaterialSubtype();
+            actee = decoder.getString(row.getActee());
+            metadata = row.getMetadata();
+        }
+
+        InsightRecord<InsightAction> toRecord(Decoder decoder) {
+            StorageMetadata meta = decoder.getMetadata(metadata, metadataId != NO_REFERENCE);
+
+            InsightMaterial material;
+            if (action instanceof BlockAction) {
+                material = decoder.getMaterial(materialNamespace, materialName, materialSubtype);
+            } else if (action instanceof ItemAction) {
+                material = decoder.getMaterial(materialNamespace, materialName, meta == null ? 0 : ((ItemMetadata) meta).getDamage());
+            } else {
+                material = null;
+            }
+
+            return new InsightRecord<InsightAction>(datetime, actor, action, new InsightLocation(x, y, z, world), material, actee, meta);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.amshulman.insight.sql;
+
+import java.time.LocalDateTime;
+
+import lombok.Value;
+
+import com.amshulman.insight.types.InsightMaterial;
+
+/**
+ * One group of an aggregate lookup. Fields the lookup did not group by are
+ * {@code null}.
+ */
+@Value
+public class ActivityCount {
+
+    LocalDateTime hour;
+    String actor;
+    String action;
+    InsightMaterial material;
+    long count;
+}
@@ -0,0 +1,47 @@
+package com.amshulman.insight.sql;
+
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Parameters of an aggregate lookup answered from the activity rollups.
+ * Empty sets match everything. Regions are matched at the granularity of
+ * 512x512 block regions, so a region that only partly overlaps the bounds is
+ * counted in full. Likewise, the hours the time bounds fall into are counted
+ * in full.
+ */
+@Getter
+@Setter
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ActivityQuery {
+
+    public enum Grouping {
+        HOUR, ACTOR, ACTION, MATERIAL
+    }
+
+    Set<String> worlds = new HashSet<>();
+    Set<String> actors = new HashSet<>();
+    Set<String> actions = new HashSet<>();
+    LocalDateTime after;
+    LocalDateTime before;
+    EnumSet<Grouping> groupBy = EnumSet.of(Grouping.ACTOR);
+    int limit = 100;
+
+    @Setter(AccessLevel.NONE) boolean regionSet = false;
+    @Setter(AccessLevel.NONE) int minX, minZ, maxX, maxZ;
+
+    public void setRegion(int minX, int minZ, int maxX, int maxZ) {
+        this.minX = Math.min(minX, maxX);
+        this.minZ = Math.min(minZ, maxZ);
+        this.maxX = Math.max(minX, maxX);
+        this.maxZ = Math.max(minZ, maxZ);
+        regionSet = true;
+    }
+}
@@ -0,0 +1,301 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.sql.ActivityQuery.Grouping;
+import com.amshulman.insight.types.InsightMaterial;
+
+/**
+ * Maintains the {@code <world>_rollup} tables, which count rows per hour,
+ * 512x512 block region, actor, action and material. They are updated in the
+ * same transaction as the rows they count, so aggregate lookups never have to
+ * read the world tables themselves. Rows logged before a world's rollup table
+ * existed aren't counted, so lookups only cover the hours from
+ * {@link WorldRegistry#getRollupSince(String)} on.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ActivityRollup {
+
+    static final int REGION_SHIFT = 9;
+    static final short NO_MATERIAL = 0;
+
+    public static int toRegion(int coordinate) {
+        return coordinate >> REGION_SHIFT;
+    }
+
+    /**
+     * Truncates to the start of the hour in local time, which is what the
+     * {@code datetime} columns hold.
+     */
+    public static long toHour(long datetime) {
+        return Timestamp.valueOf(new Timestamp(datetime).toLocalDateTime().truncatedTo(ChronoUnit.HOURS)).getTime();
+    }
+
+    /**
+     * Accumulates the counts for one batch of rows.
+     */
+    public static final class Batch {
+
+        private final Map<Key, int[]> counts = new TreeMap<>();
+
+        public void add(EncodedRow row) {
+            add(row.getWorld(), row.getDatetime(), row.getX(), row.getZ(), row.getActorId(), row.getActionId(), row.getMaterialId());
+        }
+
+        public void add(String world, long datetime, int x, int z, int actorId, byte actionId, short materialId) {
+            Key key = new Key(world, toHour(datetime), toRegion(x), toRegion(z), actorId, actionId & 0xFF, materialId & 0xFFFF);
+            int[] count = counts.get(key);
+            if (count == null) {
+                counts.put(key, new int[] { 1 });
+            } else {
+                ++count[0];
+            }
+        }
+
+        /**
+         * Adds the accumulated counts to the rollup tables. Keys are written in
+         * primary key order to keep concurrent writers from deadlocking.
+         */
+        public void write(WriterSession session) throws SQLException {
+            Map<String, PreparedStatement> stmts = new HashMap<>();
+
+            for (Map.Entry<Key, int[]> entry : counts.entrySet()) {
+                Key key = entry.getKey();
+
+                PreparedStatement stmt = stmts.get(key.world);
+                if (stmt == null) {
+                    stmt = session.prepare("INSERT INTO `" + key.world + "_rollup`(`hour`, `actorid`, `actionid`, `materialid`, `regionx`, `regionz`, `count`) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                                           "ON DUPLICATE KEY UPDATE `count` = `count` + VALUES(`count`)");
+                    stmts.put(key.world, stmt);
+                }
+
+                stmt.setTimestamp(1, new Timestamp(key.hour));
+                stmt.setInt(2, key.actorId);
+                stmt.setInt(3, key.actionId);
+                stmt.setInt(4, key.materialId);
+                stmt.setInt(5, key.regionX);
+                stmt.setInt(6, key.regionZ);
+                stmt.setInt(7, entry.getValue()[0]);
+                stmt.addBatch();
+            }
+
+            for (PreparedStatement stmt : stmts.values()) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Counts the matching rows of each world from the hour its rollups are
+     * complete, or from the query's lower bound if that is later. Without
+     * worlds, every known world is counted. Worlds without rollups are
+     * skipped.
+     */
+    public static List<ActivityCount> query(Connection conn, ActivityQuery query, WorldRegistry registry) throws SQLException {
+        Map<List<Object>, ActivityCount> merged = new HashMap<>();
+        boolean byHour = query.getGroupBy().contains(Grouping.HOUR);
+        boolean byActor = query.getGroupBy().contains(Grouping.ACTOR);
+        boolean byAction = query.getGroupBy().contains(Grouping.ACTION);
+        boolean byMaterial = query.getGroupBy().contains(Grouping.MATERIAL);
+
+        Set<String> worlds = query.getWorlds().isEmpty() ? registry.getWorlds() : query.getWorlds();
+        for (String world : worlds) {
+            LocalDateTime since = registry.getRollupSince(world);
+            if (since == null) {
+                continue;
+            }
+
+            List<Object> params = new ArrayList<>();
+            String sql = buildQuery(world, query, since, params);
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < params.size(); ++i) {
+                    stmt.setObject(i + 1, params.get(i));
+                }
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        LocalDateTime hour = byHour ? rs.getTimestamp("hour").toLocalDateTime() : null;
+                        String actor = byActor ? rs.getString("actor") : null;
+                        String action = byAction ? rs.getString("action") : null;
+                        InsightMaterial material = null;
+                        if (byMaterial && rs.getString("material_name") != null) {
+                            material = new InsightMaterial(rs.getString("material_namespace"), rs.getString("material_name"), rs.getShort("material_subtype"));
+                        }
+
+                        List<Object> key = Arrays.<Object> asList(hour, actor, action, material == null ? null : material.getNamespace(),
+                                                                  material == null ? null : material.getName(), material == null ? null : material.getSubtype());
+                        ActivityCount previous = merged.get(key);
+                        long count = rs.getLong("total") + (previous == null ? 0 : previous.getCount());
+                        merged.put(key, new ActivityCount(hour, actor, action, material, count));
+                    }
+                }
+            }
+        }
+
+        List<ActivityCount> results = new ArrayList<>(merged.values());
+        Collections.sort(results, byHour ? CHRONOLOGICAL : LARGEST_FIRST);
+
+        if (query.getLimit() > 0 && results.size() > query.getLimit()) {
+            results.subList(query.getLimit(), results.size()).clear();
+        }
+
+        return results;
+    }
+
+    private static String buildQuery(String world, ActivityQuery query, LocalDateTime since, List<Object> params) {
+        List<String> columns = new ArrayList<>();
+        List<String> groups = new ArrayList<>();
+
+        if (query.getGroupBy().contains(Grouping.HOUR)) {
+            columns.add("`hour`");
+            groups.add("`hour`");
+        }
+        if (query.getGroupBy().contains(Grouping.ACTOR)) {
+            columns.add("`actors`.`name` AS `actor`");
+            groups.add("`actors`.`name`");
+        }
+        if (query.getGroupBy().contains(Grouping.ACTION)) {
+            columns.add("`actions`.`name` AS `action`");
+            groups.add("`actions`.`name`");
+        }
+        if (query.getGroupBy().contains(Grouping.MATERIAL)) {
+            columns.add("`materials`.`namespace` AS `material_namespace`, `materials`.`name` AS `material_name`, `materials`.`subtype` AS `material_subtype`");
+            groups.add("`materials`.`id`");
+        }
+        columns.add("SUM(`count`) AS `total`");
+
+        String table = world + "_rollup";
+        StringBuilder sql = new StringBuilder("SELECT ");
+        join(sql, columns, ", ");
+        sql.append(" FROM `").append(table).append("` ")
+           .append("INNER JOIN `actors` ON `").append(table).append("`.`actorid` = `actors`.`id` ")
+           .append("INNER JOIN `actions` ON `").append(table).append("`.`actionid` = `actions`.`id` ")
+           .append("LEFT JOIN `materials` ON `").append(table).append("`.`materialid` = `materials`.`id`");
+
+        List<String> conditions = new ArrayList<>();
+        if (!query.getActors().isEmpty()) {
+            conditions.add("`actors`.`name` IN (" + MetadataStore.placeholders(query.getActors().size()) + ")");
+            params.addAll(query.getActors());
+        }
+        if (!query.getActions().isEmpty()) {
+            conditions.add("`actions`.`name` IN (" + MetadataStore.placeholders(query.getActions().size()) + ")");
+            params.addAll(query.getActions());
+        }
+        // Include the hour the bound falls into
+        LocalDateTime after = query.getAfter() == null ? since : query.getAfter().truncatedTo(ChronoUnit.HOURS);
+        conditions.add("`hour` >= ?");
+        params.add(Timestamp.valueOf(after.isBefore(since) ? since : after));
+        if (query.getBefore() != null) {
+            // Include the hour the bound falls into, unless it is on the hour
+            LocalDateTime before = query.getBefore().truncatedTo(ChronoUnit.HOURS);
+            if (before.isBefore(query.getBefore())) {
+                before = before.plusHours(1);
+            }
+            conditions.add("`hour` < ?");
+            params.add(Timestamp.valueOf(before));
+        }
+        if (query.isRegionSet()) {
+            conditions.add("`regionx` BETWEEN ? AND ? AND `regionz` BETWEEN ? AND ?");
+            params.add(toRegion(query.getMinX()));
+            params.add(toRegion(query.getMaxX()));
+            params.add(toRegion(query.getMinZ()));
+            params.add(toRegion(query.getMaxZ()));
+        }
+
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ");
+            join(sql, conditions, " AND ");
+        }
+
+        if (!groups.isEmpty()) {
+            sql.append(" GROUP BY ");
+            join(sql, groups, ", ");
+        }
+
+        return sql.toString();
+    }
+
+    private static void join(StringBuilder sb, List<String> parts, String separator) {
+        for (int i = 0; i < parts.size(); ++i) {
+            if (i != 0) {
+                sb.append(separator);
+            }
+            sb.append(parts.get(i));
+        }
+    }
+
+    private static final Comparator<ActivityCount> LARGEST_FIRST = new Comparator<ActivityCount>() {
+
+        @Override
+        public int compare(ActivityCount o1, ActivityCount o2) {
+            return Long.compare(o2.getCount(), o1.getCount());
+        }
+    };
+
+    private static final Comparator<ActivityCount> CHRONOLOGICAL = new Comparator<ActivityCount>() {
+
+        @Override
+        public int compare(ActivityCount o1, ActivityCount o2) {
+            int result = o1.getHour().compareTo(o2.getHour());
+            return result != 0 ? result : LARGEST_FIRST.compare(o1, o2);
+        }
+    };
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class Key implements Comparable<Key> {
+
+        final String world;
+        final long hour;
+        final int regionX;
+        final int regionZ;
+        final int actorId;
+        final int actionId;
+        final int materialId;
+
+        @Override
+        public int compareTo(Key o) {
+            int result = world.compareTo(o.world);
+            if (result == 0) {
+                result = Long.compare(hour, o.hour);
+            }
+            if (result == 0) {
+                result = Integer.compare(actorId, o.actorId);
+            }
+            if (result == 0) {
+                result = Integer.compare(actionId, o.actionId);
+            }
+            if (result == 0) {
+                result = Integer.compare(materialId, o.materialId);
+            }
+            if (result == 0) {
+                result = Integer.compare(regionX, o.regionX);
+            }
+            if (result == 0) {
+                result = Integer.compare(regionZ, o.regionZ);
+            }
+            return result;
+        }
+    }
+}
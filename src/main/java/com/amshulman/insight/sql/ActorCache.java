@@ -0,0 +1,191 @@
+package com.amshulman.insight.sql;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Bounded actor name to id cache using segmented LRU eviction. New actors
+ * start out on probation and are only promoted to the protected segment once
+ * they are looked up again, so a burst of one-off actors (named mobs, players
+ * who log in once) can't push out the ones that are active all the time.
+ * <p>
+ * Lookups reorder the segments, so every method is synchronized even though
+ * {@link ForeignKeyCache} callers may only be holding its read lock.
+ */
+final class ActorCache {
+
+    private static final float PROTECTED_RATIO = 0.8f;
+
+    private final int capacity;
+    private final int protectedCapacity;
+
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    // Every entry of both segments, for lookups that mustn't change their order
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<UUID, Entry> byUUID = new HashMap<>();
+
+    ActorCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.protectedCapacity = (int) (this.capacity * PROTECTED_RATIO);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    synchronized boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    synchronized boolean containsUUID(UUID uuid) {
+        return byUUID.containsKey(uuid);
+    }
+
+    synchronized int getId(String name) {
+        Entry entry = touch(name);
+        return entry == null ? ForeignKeyCache.NO_ENTRY : entry.id;
+    }
+
+    synchronized String getName(UUID uuid) {
+        Entry entry = byUUID.get(uuid);
+        if (entry == null) {
+            return null;
+        }
+
+        touch(entry.name);
+        return entry.name;
+    }
+
+    synchronized UUID getUUID(String name) {
+        Entry entry = touch(name);
+        return entry == null ? null : entry.uuid;
+    }
+
+    synchronized void put(String name, int id) {
+        Entry entry = find(name);
+        if (entry == null) {
+            insert(new Entry(name, id));
+        } else {
+            entry.id = id;
+        }
+    }
+
+    /**
+     * Caches an actor read from the database unless we already know about it,
+     * in which case our copy may be newer.
+     */
+    synchronized void putIfAbsent(String name, int id, UUID uuid) {
+        if (find(name) != null) {
+            return;
+        }
+
+        Entry entry = new Entry(name, id);
+        if (uuid != null && !byUUID.containsKey(uuid)) {
+            entry.uuid = uuid;
+            byUUID.put(uuid, entry);
+        }
+        insert(entry);
+    }
+
+    /**
+     * Associates a UUID with an already cached actor, taking it away from any
+     * actor it previously belonged to.
+     */
+    synchronized void putUUID(UUID uuid, String name) {
+        Entry entry = find(name);
+        if (entry == null) {
+            return;
+        }
+
+        Entry previous = byUUID.remove(uuid);
+        if (previous != null) {
+            previous.uuid = null;
+        }
+        if (entry.uuid != null) {
+            byUUID.remove(entry.uuid);
+        }
+
+        entry.uuid = uuid;
+        byUUID.put(uuid, entry);
+    }
+
+    synchronized int remove(String name) {
+        Entry entry = probation.remove(name);
+        if (entry == null) {
+            entry = protectedSegment.remove(name);
+        }
+        if (entry == null) {
+            return ForeignKeyCache.NO_ENTRY;
+        }
+
+        byName.remove(name);
+        if (entry.uuid != null) {
+            byUUID.remove(entry.uuid);
+        }
+        return entry.id;
+    }
+
+    // Looks an entry up without promoting it or changing its recency
+    private Entry find(String name) {
+        return byName.get(name);
+    }
+
+    private Entry touch(String name) {
+        Entry entry = protectedSegment.get(name);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = probation.remove(name);
+        if (entry == null) {
+            return null;
+        }
+
+        // Seen twice, so move it out of the way of one-off actors
+        protectedSegment.put(name, entry);
+        if (protectedSegment.size() > protectedCapacity) {
+            Iterator<Entry> eldest = protectedSegment.values().iterator();
+            Entry demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.name, demoted);
+        }
+
+        return entry;
+    }
+
+    private void insert(Entry entry) {
+        probation.put(entry.name, entry);
+        byName.put(entry.name, entry);
+
+        while (size() > capacity) {
+            Iterator<Entry> eldest = (probation.isEmpty() ? protectedSegment : probation).values().iterator();
+            Entry evicted = eldest.next();
+            eldest.remove();
+
+            byName.remove(evicted.name);
+            if (evicted.uuid != null) {
+                byUUID.remove(evicted.uuid);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final String name;
+        int id;
+        UUID uuid;
+
+        Entry(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+}
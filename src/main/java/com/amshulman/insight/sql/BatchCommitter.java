@@ -0,0 +1,238 @@
+package com.amshulman.insight.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Writes encoded rows, and their rollup counts, in one transaction.
+ * <p>
+ * Transient failures such as deadlocks and dropped connections are retried
+ * on a fresh session with exponential backoff. Any other failure splits the
+ * batch in half and tries again, until the rows the database refuses are
+ * isolated and set aside in the {@link DeadLetterStore}, unless the error
+ * clearly applies to the whole batch. Rows are only ever
+ * dropped if the dead letter store can't write them either.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class BatchCommitter {
+
+    static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 100;
+
+    private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int MYSQL_DEADLOCK = 1213;
+
+    WriterSessionPool sessions;
+    DeadLetterStore deadLetters;
+
+    public void commit(List<EncodedRow> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeWithRetry(rows);
+        } catch (SQLException e) {
+            handleFailure(rows, e);
+        }
+    }
+
+    private void handleFailure(List<EncodedRow> rows, SQLException e) {
+        if (isTransient(e)) {
+            deadLetters.defer(rows, e);
+        } else if (rows.size() == 1 || isBatchLevel(e)) {
+            deadLetters.reject(rows, e);
+        } else {
+            isolate(rows);
+        }
+    }
+
+    /**
+     * Splits the rows in half and writes each half on its own, so only the
+     * rows at fault end up rejected.
+     */
+    private void isolate(List<EncodedRow> rows) {
+        int middle = rows.size() / 2;
+        List<EncodedRow> first = rows.subList(0, middle);
+        List<EncodedRow> second = rows.subList(middle, rows.size());
+
+        SQLException firstFailure = tryWrite(first);
+        SQLException secondFailure = tryWrite(second);
+
+        if (firstFailure != null) {
+            handleFailure(first, firstFailure);
+        }
+        if (secondFailure != null) {
+            handleFailure(second, secondFailure);
+        }
+    }
+
+    private SQLException tryWrite(List<EncodedRow> rows) {
+        try {
+            writeWithRetry(rows);
+            return null;
+        } catch (SQLException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Returns whether the error applies to every row alike, such as a missing
+     * table or a denied permission.
+     */
+    static boolean isBatchLevel(SQLException e) {
+        String state = e.getSQLState();
+        // Syntax error or access rule violation, invalid authorization, invalid catalog or schema
+        return state != null && (state.startsWith("42") || state.startsWith("28") || state.startsWith("3D") || state.startsWith("3F"));
+    }
+
+    /**
+     * Tries to write the deferred rows again, oldest first. Stops at the
+     * first file that still can't be written because of a transient error.
+     */
+    public void replayDeferred() {
+        for (File file : deadLetters.getDeferred()) {
+            List<EncodedRow> rows;
+            try {
+                rows = DeadLetterStore.read(file);
+            } catch (IOException e) {
+                System.err.println("Unable to read " + file);
+                e.printStackTrace();
+                continue;
+            }
+
+            try {
+                writeWithRetry(rows);
+            } catch (SQLException e) {
+                if (isTransient(e)) {
+                    return; // Still unavailable, try again later
+                }
+                commit(rows); // Isolate the rows at fault
+            }
+
+            if (!file.delete()) {
+                System.err.println("Unable to delete " + file + ", its rows may be written twice");
+            }
+        }
+    }
+
+    private void writeWithRetry(List<EncodedRow> rows) throws SQLException {
+        for (int attempt = 1;; ++attempt) {
+            try {
+                write(rows);
+                return;
+            } catch (SQLException e) {
+                if (!isTransient(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                backOff(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Sleeps before retrying after a transient failure, exponentially longer
+     * for every attempt and with jitter so that writers don't retry in step.
+     * Throws {@code e} if interrupted.
+     */
+    static void backOff(int attempt, SQLException e) throws SQLException {
+        long backoff = BASE_BACKOFF_MILLIS << (attempt - 1);
+        try {
+            Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+        } catch (InterruptedException e1) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    private void write(List<EncodedRow> rows) throws SQLException {
+        WriterSession session = sessions.borrow();
+        boolean committed = false;
+        try {
+            writeRows(session, rows, sessions.getMaxStatementSize());
+
+            session.getConnection().commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                try {
+                    session.getConnection().rollback();
+                } catch (SQLException e) {
+                    // The session is thrown away either way
+                }
+            }
+            sessions.release(session, !committed);
+        }
+    }
+
+    /**
+     * Inserts the rows and updates the rollups in the session's current
+     * transaction, leaving the commit to the caller.
+     */
+    static void writeRows(WriterSession session, List<EncodedRow> rows, long maxStatementSize) throws SQLException {
+        Map<String, Map<WorldTable, List<EncodedRow>>> byTable = new HashMap<>();
+        ActivityRollup.Batch rollup = new ActivityRollup.Batch();
+
+        for (EncodedRow row : rows) {
+            Map<WorldTable, List<EncodedRow>> tables = byTable.get(row.getWorld());
+            if (tables == null) {
+                tables = new EnumMap<>(WorldTable.class);
+                byTable.put(row.getWorld(), tables);
+            }
+
+            List<EncodedRow> tableRows = tables.get(row.getTable());
+            if (tableRows == null) {
+                tableRows = new ArrayList<>();
+                tables.put(row.getTable(), tableRows);
+            }
+
+            tableRows.add(row);
+            rollup.add(row);
+        }
+
+        for (Map.Entry<String, Map<WorldTable, List<EncodedRow>>> world : byTable.entrySet()) {
+            for (Map.Entry<WorldTable, List<EncodedRow>> table : world.getValue().entrySet()) {
+                MultiRowInsert.write(session, world.getKey(), table.getKey(), table.getValue(), maxStatementSize);
+            }
+        }
+        rollup.write(session);
+    }
+
+    static boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+
+            if (t instanceof SQLException) {
+                SQLException sqlException = (SQLException) t;
+                String state = sqlException.getSQLState();
+
+                // Transaction rollback (including serialization failures) and connection exceptions
+                if (state != null && (state.startsWith("40") || state.startsWith("08"))) {
+                    return true;
+                }
+                if (sqlException.getErrorCode() == MYSQL_DEADLOCK || sqlException.getErrorCode() == MYSQL_LOCK_WAIT_TIMEOUT) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,27 @@
+package com.amshulman.insight.sql;
+
+/**
+ * How {@link RowCoalescer} treats rows of an action that repeat within its
+ * window.
+ */
+public enum CoalesceRule {
+
+    /** Every row is kept. */
+    NONE,
+
+    /**
+     * Rows identical to an earlier one (same actor, action, location,
+     * material or actee, and metadata including item quantity) are dropped.
+     * Suits pickup and interaction spam.
+     */
+    DROP_DUPLICATES,
+
+    /**
+     * Of a run of rows at one location by one actor, only the first and the
+     * last are kept, so the state before and after the run is still known.
+     * Suits break and place churn and fluid or redstone updates; every action
+     * sharing this rule takes part in the same run, but block, item and
+     * entity rows have runs of their own.
+     */
+    FIRST_AND_LAST
+}
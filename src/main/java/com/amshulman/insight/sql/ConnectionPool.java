@@ -2,38 +2,63 @@ package com.amshulman.insight.sql;
 
 import java.io.Closeable;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.amshulman.insight.util.InsightDatabaseConfigurationInfo;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
 
 public class ConnectionPool implements Closeable {
 
     private static final long INVALID = -1;
+    private static final long SIZING_INTERVAL_SECONDS = 10;
+    // Player registration, key resolution, the dictionary log and maintenance all borrow their own
+    private static final int SHARED_CONNECTIONS = 4;
+    // Hikari's default, which we never go below
+    private static final int MINIMUM_SIZE = 10;
 
     private final HikariDataSource ds;
+    private final PoolSizer sizer;
+    private final ScheduledExecutorService sizingThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Insight pool sizing").setDaemon(true).build());
+    private long maxAllowedPacket = INVALID;
 
-    public ConnectionPool(InsightDatabaseConfigurationInfo configurationContext) {
+    /**
+     * Opens a pool sized for the given number of writers and concurrent
+     * lookups, plus the connections needed by everything else. Writers must
+     * be bounded by {@code writers}, see {@link WriterSessionPool}. The pool
+     * grows up to {@code maximumSize} while callers have to wait for
+     * connections.
+     */
+    public ConnectionPool(InsightDatabaseConfigurationInfo configurationContext, int writers, int readers, int maximumSize) {
         HikariConfig config = new HikariConfig();
-        long idleTimeout = INVALID;
+        boolean mySql = false;
 
         switch (configurationContext.getDatabaseType()) {
             case MYSQL:
                 config.setDataSourceClassName(org.mariadb.jdbc.MariaDbDataSource.class.getName());
-                idleTimeout = getMySqlIdleTimeout(configurationContext);
+                mySql = true;
                 break;
             case POSTGRES:
                 config.setDataSourceClassName(org.postgresql.ds.PGSimpleDataSource.class.getName());
+                // Switch to server-side prepared statements on the first execution and keep plenty of them around
+                config.addDataSourceProperty("prepareThreshold", 1);
+                config.addDataSourceProperty("preparedStatementCacheQueries", 512);
                 break;
             default:
                 throw new IllegalArgumentException();
         }
 
+        int initialSize = Math.max(MINIMUM_SIZE, writers + readers + SHARED_CONNECTIONS);
+        config.setMinimumIdle(Math.max(1, writers));
+        config.setMaximumPoolSize(initialSize);
+
         config.setInitializationFailTimeout(3000);
         config.addDataSourceProperty("serverName", configurationContext.getDatabaseAddress());
         config.addDataSourceProperty("port", configurationContext.getDatabasePort());
@@ -42,18 +67,38 @@ public class ConnectionPool implements Closeable {
         config.setUsername(configurationContext.getDatabaseUsername());
         config.setPassword(configurationContext.getDatabasePassword());
         config.setPoolName("Insight");
-        config.addDataSourceProperty("properties", "rewriteBatchedStatements=true&useFractionalSeconds=true&useUnicode=true&characterEncoding=utf-8");
-        if (idleTimeout != INVALID) {
-            try {
-                config.setIdleTimeout((long) (TimeUnit.SECONDS.toMillis(idleTimeout) * 0.9));
-            } catch (SecurityException e) {
-                e.printStackTrace();
-            }
-        }
+        config.addDataSourceProperty("properties", "rewriteBatchedStatements=true&useFractionalSeconds=true&useUnicode=true&characterEncoding=utf-8" +
+                                                    "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=512&prepStmtCacheSqlLimit=4096");
 
         ds = new HikariDataSource(config);
 
-        // System.out.println("[DEBUG] Using conncection idle timeout of " + ds.getIdleTimeout());
+        // The pool already holds the connection it opened to check the server is reachable, reuse it
+        if (mySql) {
+            readServerSettings();
+        }
+
+        sizer = new PoolSizer(ds.getHikariConfigMXBean(), ds.getHikariPoolMXBean(), initialSize, maximumSize);
+        sizingThread.scheduleWithFixedDelay(sizer, SIZING_INTERVAL_SECONDS, SIZING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void readServerSettings() {
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT @@wait_timeout, @@max_allowed_packet");
+             ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) {
+                return;
+            }
+
+            // Retire connections before the server drops them
+            HikariConfigMXBean config = ds.getHikariConfigMXBean();
+            long waitTimeout = TimeUnit.SECONDS.toMillis(rs.getLong(1));
+            config.setMaxLifetime(Math.min(config.getMaxLifetime(), (long) (waitTimeout * 0.9)));
+            config.setIdleTimeout(Math.min(config.getIdleTimeout(), (long) (waitTimeout * 0.8)));
+
+            maxAllowedPacket = rs.getLong(2);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -63,35 +108,27 @@ public class ConnectionPool implements Closeable {
      * @throws SQLException
      */
     public Connection getConnection() throws SQLException {
-        return ds.getConnection();
+        long start = System.nanoTime();
+        Connection conn = ds.getConnection();
+        sizer.recordWait(System.nanoTime() - start);
+        return conn;
     }
 
-    @Override
-    public void close() {
-        ds.close();
+    /**
+     * Returns the largest packet the server accepts, or a negative number
+     * if it has no such limit or it is unknown.
+     */
+    public long getMaxAllowedPacket() {
+        return maxAllowedPacket;
     }
 
-    private static long getMySqlIdleTimeout(InsightDatabaseConfigurationInfo configurationContext) {
-        try (
-             Connection conn = DriverManager.getConnection("jdbc:mysql://" +
-                     configurationContext.getDatabaseAddress() +
-                     ":" + configurationContext.getDatabasePort() + "/",
-                                                           configurationContext.getDatabaseUsername(),
-                                                           configurationContext.getDatabasePassword());
-             Statement stmt = conn.createStatement();) {
-
-            stmt.execute("SHOW VARIABLES LIKE \"wait_timeout\"");
-            ResultSet rs = stmt.getResultSet();
-            rs.next();
-            long waitTimeout = rs.getLong("Value");
-
-            assert (!rs.next());
-            stmt.close();
-            conn.close();
-
-            return waitTimeout;
-        } catch (SQLException | AssertionError e) {}
+    public PoolStats getStats() {
+        return sizer.getStats();
+    }
 
-        return INVALID;
+    @Override
+    public void close() {
+        sizingThread.shutdownNow();
+        ds.close();
     }
 }
@@ -1,14 +1,18 @@
 package com.amshulman.insight.sql;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 
 import lombok.AccessLevel;
@@ -26,6 +30,7 @@ import com.amshulman.insight.tbd.RowCache;
 import com.amshulman.insight.types.InsightMaterial;
 import com.amshulman.insight.types.MaterialCompat;
 import com.amshulman.insight.util.SerializationUtil;
+import com.google.common.hash.HashCode;
 
 @RequiredArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
@@ -34,6 +39,16 @@ public final class DatabaseDumper implements Runnable {
     ConnectionPool cp;
     RowCache rowCache;
     ForeignKeyCache keyCache;
+    PlayerRegistrar registrar;
+    MetadataCodec codec;
+    MetadataStore metadataStore;
+    WorldRegistry worldRegistry;
+    WriterLanes lanes;
+    RowCoalescer coalescer;
+    KeyResolver keys;
+    DeadLetterStore deadLetters;
+    // Rows whose keys couldn't be resolved yet, shared by every dumper of the backend
+    Queue<RowEntry> heldRows;
 
     @Override
     public void run() {
@@ -41,198 +56,267 @@ public final class DatabaseDumper implements Runnable {
             return;
         }
 
-        Set<String> worlds = preprocessResults();
-        Map<String, PreparedStatement[]> stmts = new HashMap<>(worlds.size());
-
-        keyCache.acquireReadLock();
-        try (Connection conn = cp.getConnection()) {
-            conn.setAutoCommit(false);
-
-            for (String world : worlds) {
-                stmts.put(world, new PreparedStatement[] {
-                    conn.prepareStatement("INSERT INTO `" + world + "_blocks`(`datetime`, `actionid`, `actorid`, `x`, `y`, `z`, `blockid`, `metadata`) VALUES (?, ?, ?, ?, ?, ?, ?, ?)"),
-                    conn.prepareStatement("INSERT INTO `" + world + "_items`(`datetime`, `actionid`, `actorid`, `x`, `y`, `z`, `itemid`, `metadata`) VALUES (?, ?, ?, ?, ?, ?, ?, ?)"),
-                    conn.prepareStatement("INSERT INTO `" + world + "_entities`(`datetime`, `actionid`, `actorid`, `x`, `y`, `z`, `acteeid`, `metadata`) VALUES (?, ?, ?, ?, ?, ?, ?, ?)") }
-                );
-            }
-
-            for (RowEntry row : rowCache) {
-                PreparedStatement stmt;
-
-                if (row instanceof BlockRowEntry) {
-                    stmt = stmts.get(row.getWorld())[0];
-                    setBasicParameters(stmt, row);
+        // Rows held back from earlier batches go first to keep them in order
+        List<RowEntry> rows = new ArrayList<>(rowCache.getSize() + heldRows.size());
+        for (RowEntry held; (held = heldRows.poll()) != null;) {
+            rows.add(held);
+        }
 
-                    BlockRowEntry blockRow = (BlockRowEntry) row;
-                    InsightMaterial m = MaterialCompat.getInsightMaterial(blockRow.getBlock());
-                    stmt.setShort(7, keyCache.getMaterialId(m.getNamespace(), m.getName(), m.getSubtype()));
+        // Held rows were coalesced with their own batch already
+        int firstNew = rows.size();
+        for (RowEntry row : rowCache) {
+            rows.add(row);
+        }
+        coalescer.coalesce(rows.subList(firstNew, rows.size()));
 
-                    if (blockRow.getMetadata() == null && blockRow.getPreviousBlock() == null) {
-                        stmt.setNull(8, java.sql.Types.VARBINARY);
-                    } else {
-                        stmt.setBytes(8, SerializationUtil.serializeMetadata(new BlockMetadata(blockRow.getMetadata(), blockRow.getPreviousBlock())));
-                    }
+        // Players whose rows are in this batch must be registered first
+        holdUnregistered(rows, registrar.flush());
 
-                    stmt.addBatch();
-                } else if (row instanceof ItemRowEntry) {
-                    stmt = stmts.get(row.getWorld())[1];
-                    setBasicParameters(stmt, row);
+        // Actors can be evicted from the cache at any time, so hold on to this batch's ids
+        TObjectIntMap<String> actorIds = new TObjectIntHashMap<>(rows.size(), 0.5f, ForeignKeyCache.NO_ENTRY);
+        preprocessResults(rows, actorIds);
 
-                    ItemRowEntry itemRow = (ItemRowEntry) row;
-                    InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
-                    stmt.setShort(7, keyCache.getMaterialId(m.getNamespace(), m.getName(), (short) 0)); // damage value is stored in meta
+        List<EncodedRow> encodedRows;
+        keyCache.acquireReadLock();
+        try {
+            Map<RowEntry, byte[]> serializedMetadata = serializeMetadata(rows);
+            try {
+                Map<String, Map<HashCode, Integer>> metadataIds = storeMetadata(serializedMetadata);
+                encodedRows = encode(rows, actorIds, serializedMetadata, metadataIds);
+            } catch (SQLException e) {
+                // Keep large blobs inline so the deferred rows don't depend on the metadata table
+                deadLetters.defer(encode(rows, actorIds, serializedMetadata, null), e);
+                encodedRows = Collections.emptyList();
+            }
+        } finally {
+            keyCache.releaseReadLock();
+        }
 
-                    StorageMetadata meta = null;
-                    if (itemRow.getMetadata().serialize().size() > 1) {
-                        meta = new ItemMetadata(itemRow.getMetadata(), itemRow.getQuantity(), m.getSubtype());
-                    } else if (itemRow.getQuantity() > 1 || m.getSubtype() != 0) {
-                        meta = new ItemMetadata(null, itemRow.getQuantity(), m.getSubtype());
-                    }
+        // Whatever the lanes can't write ends up in the dead letter store, so the cache is done with either way
+        lanes.submit(encodedRows);
+        rowCache.markClean();
+    }
 
-                    if (meta != null) {
-                        stmt.setBytes(8, SerializationUtil.serializeMetadata(meta));
-                    } else {
-                        stmt.setNull(8, java.sql.Types.VARBINARY);
-                    }
+    private List<EncodedRow> encode(List<RowEntry> rows, TObjectIntMap<String> actorIds, Map<RowEntry, byte[]> serializedMetadata,
+                                    Map<String, Map<HashCode, Integer>> metadataIds) {
+        List<EncodedRow> encodedRows = new ArrayList<>(rows.size());
+
+        for (RowEntry row : rows) {
+            WorldTable table;
+            int referenceId;
+
+            if (row instanceof BlockRowEntry) {
+                InsightMaterial m = MaterialCompat.getInsightMaterial(((BlockRowEntry) row).getBlock());
+                table = WorldTable.BLOCKS;
+                referenceId = keyCache.getMaterialId(m.getNamespace(), m.getName(), m.getSubtype());
+            } else if (row instanceof ItemRowEntry) {
+                ItemRowEntry itemRow = (ItemRowEntry) row;
+                InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
+                table = WorldTable.ITEMS;
+                referenceId = keyCache.getMaterialId(m.getNamespace(), m.getName(), (short) 0); // damage value is stored in meta
+            } else if (row instanceof EntityRowEntry) {
+                table = WorldTable.ENTITIES;
+                referenceId = actorIds.get(((EntityRowEntry) row).getActee());
+            } else {
+                continue;
+            }
 
-                    stmt.addBatch();
-                } else if (row instanceof EntityRowEntry) {
-                    stmt = stmts.get(row.getWorld())[2];
-                    setBasicParameters(stmt, row);
+            encodedRows.add(encode(row, table, referenceId, actorIds, serializedMetadata.get(row), metadataIds == null ? null : metadataIds.get(row.getWorld())));
+        }
 
-                    EntityRowEntry entityRow = (EntityRowEntry) row;
-                    stmt.setInt(7, keyCache.getActorId(entityRow.getActee()));
-                    stmt.setNull(8, java.sql.Types.VARBINARY);
+        return encodedRows;
+    }
 
-                    stmt.addBatch();
-                }
+    private static Map<RowEntry, byte[]> serializeMetadata(List<RowEntry> rows) {
+        Map<RowEntry, byte[]> serializedMetadata = new IdentityHashMap<>(rows.size());
+        for (RowEntry row : rows) {
+            byte[] serialized = serializeMetadata(row);
+            if (serialized != null) {
+                serializedMetadata.put(row, serialized);
             }
+        }
+        return serializedMetadata;
+    }
 
-            for(PreparedStatement[] worldStatements : stmts.values()) {
-                worldStatements[0].executeBatch();
-                worldStatements[1].executeBatch();
-                worldStatements[2].executeBatch();
+    /**
+     * Stores the serialized blobs too large to inline, returning their ids by
+     * world. Worlds whose tables can't reference stored metadata yet have no
+     * ids, so their blobs are inlined.
+     */
+    private Map<String, Map<HashCode, Integer>> storeMetadata(Map<RowEntry, byte[]> serializedMetadata) throws SQLException {
+        Map<String, List<byte[]>> referenced = new HashMap<>();
+
+        for (Map.Entry<RowEntry, byte[]> entry : serializedMetadata.entrySet()) {
+            String world = entry.getKey().getWorld();
+            if (!MetadataStore.shouldInline(entry.getValue()) && worldRegistry.hasMetadataIds(world)) {
+                List<byte[]> blobs = referenced.get(world);
+                if (blobs == null) {
+                    blobs = new ArrayList<>();
+                    referenced.put(world, blobs);
+                }
+                blobs.add(entry.getValue());
             }
+        }
 
-            conn.setAutoCommit(true);
-            rowCache.markClean();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            keyCache.releaseReadLock();
+        Map<String, Map<HashCode, Integer>> metadataIds = new HashMap<>(referenced.size());
+        for (Map.Entry<String, List<byte[]>> entry : referenced.entrySet()) {
+            metadataIds.put(entry.getKey(), metadataStore.store(entry.getKey(), entry.getValue()));
         }
+
+        return metadataIds;
     }
 
-    private Set<String> preprocessResults() {
-        Set<String> worlds = new HashSet<>(10);
-        keyCache.acquireReadLock();
-        try {
-            // Ensure we know the row ids for all materials, actions, and actors
-            // Only NPCs actors will be caught here, players are handled at login
-            for (Iterator<RowEntry> iter = rowCache.iterator(); iter.hasNext();) {
-                RowEntry row = iter.next();
-
-                try {
-                    if (row instanceof BlockRowEntry) {
-                        InsightMaterial m = MaterialCompat.getInsightMaterial(((BlockRowEntry) row).getBlock());
-                        checkMaterial(m.getNamespace(), m.getName(), m.getSubtype());
-                    } else if (row instanceof ItemRowEntry) {
-                        ItemRowEntry itemRow = (ItemRowEntry) row;
-                        InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
-                        checkMaterial(m.getNamespace(), m.getName(), (short) 0); // damage value is stored in meta
-                    } else if (row instanceof EntityRowEntry) {
-                        checkActor(((EntityRowEntry) row).getActee());
-                    } else {
-                        continue;
-                    }
+    static byte[] serializeMetadata(RowEntry row) {
+        StorageMetadata meta = null;
 
-                    checkActor(row.getActor());
-                    checkAction(row.getAction());
-                    worlds.add(row.getWorld());
-                } catch (SQLException e) {
-                    System.err.println(row);
-                    iter.remove();
-                    e.printStackTrace();
-                }
+        if (row instanceof BlockRowEntry) {
+            BlockRowEntry blockRow = (BlockRowEntry) row;
+            if (blockRow.getMetadata() != null || blockRow.getPreviousBlock() != null) {
+                meta = new BlockMetadata(blockRow.getMetadata(), blockRow.getPreviousBlock());
+            }
+        } else if (row instanceof ItemRowEntry) {
+            ItemRowEntry itemRow = (ItemRowEntry) row;
+            InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
+
+            if (itemRow.getMetadata().serialize().size() > 1) {
+                meta = new ItemMetadata(itemRow.getMetadata(), itemRow.getQuantity(), m.getSubtype());
+            } else if (itemRow.getQuantity() > 1 || m.getSubtype() != 0) {
+                meta = new ItemMetadata(null, itemRow.getQuantity(), m.getSubtype());
             }
-        } finally {
-            keyCache.releaseReadLock();
         }
 
-        return worlds;
+        return meta == null ? null : SerializationUtil.serializeMetadata(meta);
     }
 
-    private void setBasicParameters(PreparedStatement statement, RowEntry row) throws SQLException {
-        statement.setTimestamp(1, new Timestamp(row.getDatetime()));
-        statement.setByte(2, keyCache.getActionId(row.getAction()));
-        statement.setInt(3, keyCache.getActorId(row.getActor()));
-        statement.setInt(4, row.getX());
-        statement.setShort(5, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, row.getY())));
-        statement.setInt(6, row.getZ());
+    /**
+     * Encodes a row, referencing its metadata by the id in
+     * {@code worldMetadataIds} unless it is small enough to inline. Without
+     * ids for the world, all metadata is inlined.
+     */
+    private EncodedRow encode(RowEntry row, WorldTable table, int referenceId, TObjectIntMap<String> actorIds, byte[] serialized, Map<HashCode, Integer> worldMetadataIds) {
+        byte[] metadata = null;
+        int metadataId = EncodedRow.NO_METADATA_ID;
+
+        if (serialized == null) {
+            // Nothing to store
+        } else if (worldMetadataIds == null || MetadataStore.shouldInline(serialized)) {
+            metadata = codec.encode(serialized);
+        } else {
+            metadataId = worldMetadataIds.get(MetadataStore.hash(serialized));
+        }
+
+        return new EncodedRow(row.getWorld(), table, row.getDatetime(), keyCache.getActionId(row.getAction()), actorIds.get(row.getActor()), row.getX(),
+                              (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, row.getY())), row.getZ(), referenceId, metadata, metadataId);
     }
 
-    private void checkActor(String actorName) throws SQLException {
-        if (!keyCache.containsActor(actorName)) {
-            keyCache.upgradeReadLock();
+    /**
+     * Makes sure the keys of every row are known, retrying transient failures.
+     * Rows that the keys can't be added for are dropped, and rows that are
+     * still failing for transient reasons are held back for the next batch.
+     */
+    private void preprocessResults(List<RowEntry> rows, TObjectIntMap<String> actorIds) {
+        loadUnknownActors(rows);
+
+        Set<RowEntry> excluded = Collections.newSetFromMap(new IdentityHashMap<RowEntry, Boolean>());
+        List<RowEntry> pending = rows;
+
+        for (int attempt = 1;; ++attempt) {
+            List<RowEntry> failed = new ArrayList<>();
+            SQLException failure = null;
+
+            keyCache.acquireReadLock();
             try {
-                if (!keyCache.containsActor(actorName)) {
-                    try (Connection conn = cp.getConnection();
-                         PreparedStatement insertActor = conn.prepareStatement("INSERT INTO `actors`(`name`) VALUES (?)", PreparedStatement.RETURN_GENERATED_KEYS);) {
-                        insertActor.setString(1, actorName);
-                        insertActor.executeUpdate();
-
-                        ResultSet rs = insertActor.getGeneratedKeys();
-                        rs.next();
-                        keyCache.addActor(actorName, rs.getInt(1));
+                // Ensure we know the row ids for all materials, actions, and actors
+                // Only NPCs actors will be caught here, players are handled at login
+                for (RowEntry row : pending) {
+                    try {
+                        checkKeys(row, actorIds);
+                    } catch (SQLException e) {
+                        if (BatchCommitter.isTransient(e)) {
+                            failed.add(row);
+                            failure = e;
+                        } else {
+                            System.err.println(row);
+                            excluded.add(row);
+                            e.printStackTrace();
+                        }
                     }
                 }
             } finally {
-                keyCache.downgradeWriteLock();
+                keyCache.releaseReadLock();
             }
+
+            if (failed.isEmpty()) {
+                break;
+            }
+
+            if (attempt == BatchCommitter.MAX_ATTEMPTS) {
+                System.err.println("Unable to resolve the keys of " + failed.size() + " rows, holding them for the next batch");
+                failure.printStackTrace();
+                excluded.addAll(failed);
+                heldRows.addAll(failed);
+                break;
+            }
+
+            try {
+                BatchCommitter.backOff(attempt, failure);
+            } catch (SQLException e) {
+                // Interrupted, so stop retrying
+                excluded.addAll(failed);
+                heldRows.addAll(failed);
+                break;
+            }
+            pending = failed;
         }
+
+        rows.removeAll(excluded);
     }
 
-    private void checkAction(String actionName) throws SQLException {
-        if (!keyCache.containsAction(actionName)) {
-            keyCache.upgradeReadLock();
-            try {
-                if (!keyCache.containsAction(actionName)) {
-                    try (Connection conn = cp.getConnection();
-                         PreparedStatement insertAction = conn.prepareStatement("INSERT INTO `actions`(`name`) VALUES (?)", PreparedStatement.RETURN_GENERATED_KEYS);) {
-                        insertAction.setString(1, actionName);
-                        insertAction.executeUpdate();
-
-                        ResultSet rs = insertAction.getGeneratedKeys();
-                        rs.next();
-                        keyCache.addAction(actionName, rs.getByte(1));
-                    }
-                }
-            } finally {
-                keyCache.downgradeWriteLock();
+    /**
+     * Holds back the rows of players who can't be registered until a rename
+     * lookup finishes, since their name still belongs to someone else.
+     */
+    private void holdUnregistered(List<RowEntry> rows, Set<String> unregistered) {
+        if (unregistered.isEmpty()) {
+            return;
+        }
+
+        for (Iterator<RowEntry> iter = rows.iterator(); iter.hasNext();) {
+            RowEntry row = iter.next();
+            if (unregistered.contains(row.getActor()) || (row instanceof EntityRowEntry && unregistered.contains(((EntityRowEntry) row).getActee()))) {
+                heldRows.add(row);
+                iter.remove();
             }
         }
     }
 
-    private void checkMaterial(String namespace, String materialName, short subtype) throws SQLException {
-        if (!keyCache.containsMaterial(namespace, materialName, subtype)) {
-            keyCache.upgradeReadLock();
-            try {
-                if (!keyCache.containsMaterial(namespace, materialName, subtype)) {
-                    try (Connection conn = cp.getConnection();
-                         PreparedStatement insertMaterial = conn.prepareStatement("INSERT INTO `materials`(`namespace`, `name`, `subtype`) VALUES (?, ?, ?)", PreparedStatement.RETURN_GENERATED_KEYS);) {
-                        insertMaterial.setString(1, namespace);
-                        insertMaterial.setString(2, materialName);
-                        insertMaterial.setShort(3, subtype);
-                        insertMaterial.executeUpdate();
-
-                        ResultSet rs = insertMaterial.getGeneratedKeys();
-                        rs.next();
-                        keyCache.addMaterial(namespace, materialName, subtype, rs.getShort(1));
-                    }
-                }
-            } finally {
-                keyCache.downgradeWriteLock();
+    private void checkKeys(RowEntry row, TObjectIntMap<String> actorIds) throws SQLException {
+        if (row instanceof BlockRowEntry) {
+            InsightMaterial m = MaterialCompat.getInsightMaterial(((BlockRowEntry) row).getBlock());
+            keys.checkMaterial(m.getNamespace(), m.getName(), m.getSubtype());
+        } else if (row instanceof ItemRowEntry) {
+            ItemRowEntry itemRow = (ItemRowEntry) row;
+            InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
+            keys.checkMaterial(m.getNamespace(), m.getName(), (short) 0); // damage value is stored in meta
+        } else if (row instanceof EntityRowEntry) {
+            keys.resolveActor(((EntityRowEntry) row).getActee(), actorIds);
+        } else {
+            return;
+        }
+
+        keys.resolveActor(row.getActor(), actorIds);
+        keys.checkAction(row.getAction());
+    }
+
+    private void loadUnknownActors(List<RowEntry> rows) {
+        Set<String> names = new HashSet<>();
+        for (RowEntry row : rows) {
+            names.add(row.getActor());
+            if (row instanceof EntityRowEntry) {
+                names.add(((EntityRowEntry) row).getActee());
             }
         }
+
+        keys.loadUnknownActors(names);
     }
 }
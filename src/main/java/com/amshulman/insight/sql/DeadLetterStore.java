@@ -0,0 +1,155 @@
+package com.amshulman.insight.sql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps rows that could not be written on local disk instead of dropping
+ * them. Rows that failed because the database was unavailable are deferred
+ * and replayed later; rows the database refused outright are rejected and
+ * kept, along with the error, for someone to look at.
+ */
+public final class DeadLetterStore {
+
+    public static final String EXTENSION = ".rows";
+
+    private static final int MAGIC = 0x4944454C; // IDEL
+    private static final byte VERSION = 1;
+    private static final int NULL_LENGTH = -1;
+
+    private final File deferredFolder;
+    private final File rejectedFolder;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    public DeadLetterStore(File folder) {
+        deferredFolder = new File(folder, "deferred");
+        rejectedFolder = new File(folder, "rejected");
+    }
+
+    public void defer(List<EncodedRow> rows, Exception cause) {
+        write(deferredFolder, rows, cause);
+    }
+
+    public void reject(List<EncodedRow> rows, Exception cause) {
+        write(rejectedFolder, rows, cause);
+    }
+
+    /**
+     * Returns the deferred files, oldest first.
+     */
+    public List<File> getDeferred() {
+        File[] files = deferredFolder.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        Arrays.sort(files);
+        List<File> deferred = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) {
+                deferred.add(file);
+            }
+        }
+        return deferred;
+    }
+
+    private void write(File folder, List<EncodedRow> rows, Exception cause) {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            System.err.println("Unable to create " + folder + ", throwing away " + rows.size() + " rows");
+            return;
+        }
+
+        // Sorts in the order the rows were given up on
+        String name = String.format("%013d-%05d", System.currentTimeMillis(), sequence.incrementAndGet() % 100000);
+        File tmp = new File(folder, name + ".tmp");
+
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fos)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(String.valueOf(cause));
+            out.writeInt(rows.size());
+
+            for (EncodedRow row : rows) {
+                out.writeUTF(row.getWorld());
+                out.writeByte(row.getTable().ordinal());
+                out.writeLong(row.getDatetime());
+                out.writeByte(row.getActionId());
+                out.writeInt(row.getActorId());
+                out.writeInt(row.getX());
+                out.writeShort(row.getY());
+                out.writeInt(row.getZ());
+                out.writeInt(row.getReferenceId());
+                out.writeInt(row.getMetadataId());
+
+                if (row.getMetadata() == null) {
+                    out.writeInt(NULL_LENGTH);
+                } else {
+                    out.writeInt(row.getMetadata().length);
+                    out.write(row.getMetadata());
+                }
+            }
+
+            out.flush();
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Unable to write " + tmp + ", throwing away " + rows.size() + " rows");
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(new File(folder, name + EXTENSION))) {
+            System.err.println("Unable to rename " + tmp);
+        }
+    }
+
+    public static List<EncodedRow> read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a dead letter file: " + file);
+            }
+
+            in.readUTF(); // Cause
+            int count = in.readInt();
+            List<EncodedRow> rows = new ArrayList<>(count);
+
+            for (int i = 0; i < count; ++i) {
+                String world = in.readUTF();
+                WorldTable table = WorldTable.values()[in.readByte()];
+                long datetime = in.readLong();
+                byte actionId = in.readByte();
+                int actorId = in.readInt();
+                int x = in.readInt();
+                short y = in.readShort();
+                int z = in.readInt();
+                int referenceId = in.readInt();
+                int metadataId = in.readInt();
+
+                byte[] metadata = null;
+                int length = in.readInt();
+                if (length != NULL_LENGTH) {
+                    metadata = new byte[length];
+                    in.readFully(metadata);
+                }
+
+                rows.add(new EncodedRow(world, table, datetime, actionId, actorId, x, y, z, referenceId, metadata, metadataId));
+            }
+
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Keeps the {@link ForeignKeyCache} of each server sharing a database up to
+ * date with the actors, actions and materials the others add. Whoever adds
+ * one also appends it to {@code dictionary_log}, and every server tails that
+ * table.
+ * <p>
+ * Log ids are handed out before their transactions commit, so an entry can
+ * become visible after entries with higher ids. Every poll therefore reads
+ * back a little way; entries that were seen before are simply applied again.
+ */
+public final class DictionaryLog {
+
+    public static final int ACTOR = 0;
+    public static final int ACTION = 1;
+    public static final int MATERIAL = 2;
+
+    private static final int OVERLAP = 100;
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final String TAIL_QUERY =
+            "SELECT `dictionary_log`.`id`, `kind`, `entry_id`, `actors`.`name`, `actions`.`name`, `materials`.`namespace`, `materials`.`name`, `materials`.`subtype` " +
+            "FROM `dictionary_log` " +
+            "LEFT JOIN `actors` ON `kind` = " + ACTOR + " AND `actors`.`id` = `entry_id` " +
+            "LEFT JOIN `actions` ON `kind` = " + ACTION + " AND `actions`.`id` = `entry_id` " +
+            "LEFT JOIN `materials` ON `kind` = " + MATERIAL + " AND `materials`.`id` = `entry_id` " +
+            "WHERE `dictionary_log`.`id` > ? ORDER BY `dictionary_log`.`id` LIMIT ?";
+
+    private final ConnectionPool cp;
+    private long position;
+
+    /**
+     * Starts tailing from the current end of the log. Create this before the
+     * cache is loaded, so that nothing added in between is missed.
+     */
+    public DictionaryLog(ConnectionPool cp) throws SQLException {
+        this.cp = cp;
+
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT MAX(`id`) FROM `dictionary_log`");
+             ResultSet rs = stmt.executeQuery()) {
+            position = rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Appends an entry, on the connection (and in the transaction) that added
+     * it.
+     */
+    public static void record(Connection conn, int kind, int id) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO `dictionary_log`(`kind`, `entry_id`) VALUES (?, ?)")) {
+            stmt.setInt(1, kind);
+            stmt.setInt(2, id);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Adds the entries logged since the last poll to {@code keyCache}.
+     */
+    public synchronized void poll(ForeignKeyCache keyCache) throws SQLException {
+        boolean more = true;
+
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(TAIL_QUERY)) {
+            while (more) {
+                stmt.setLong(1, Math.max(0, position - OVERLAP));
+                stmt.setInt(2, MAX_ENTRIES);
+
+                int read = 0;
+                long last = position;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    keyCache.acquireWriteLock();
+                    try {
+                        while (rs.next()) {
+                            ++read;
+                            last = Math.max(last, rs.getLong(1));
+                            apply(keyCache, rs);
+                        }
+                    } finally {
+                        keyCache.releaseWriteLock();
+                    }
+                }
+
+                // A full page that didn't get past the overlap means we're done too
+                more = read == MAX_ENTRIES && last > position;
+                position = last;
+            }
+        }
+    }
+
+    private static void apply(ForeignKeyCache keyCache, ResultSet rs) throws SQLException {
+        int id = rs.getInt(3);
+
+        switch (rs.getInt(2)) {
+            case ACTOR:
+                if (rs.getString(4) != null) {
+                    keyCache.addActorIfAbsent(rs.getString(4), id);
+                }
+                break;
+            case ACTION:
+                if (rs.getString(5) != null) {
+                    keyCache.addAction(rs.getString(5), id);
+                }
+                break;
+            case MATERIAL:
+                if (rs.getString(7) != null) {
+                    keyCache.addMaterial(rs.getString(6), rs.getString(7), rs.getShort(8), id);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.amshulman.insight.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import lombok.Value;
+
+/**
+ * A row with every foreign key resolved to its id and its metadata encoded,
+ * ready to be bound to an insert.
+ */
+@Value
+public class EncodedRow {
+
+    public static final int NO_METADATA_ID = -1;
+
+    // Generous allowance for the fixed-width columns and the statement text per row
+    private static final int FIXED_SIZE = 96;
+
+    String world;
+    WorldTable table;
+    long datetime;
+    byte actionId;
+    int actorId;
+    int x;
+    short y;
+    int z;
+    int referenceId;
+    byte[] metadata;
+    int metadataId;
+
+    /**
+     * Returns an upper bound on how much this row adds to a statement sent
+     * to the server. Binary values may be sent escaped, doubling their size.
+     */
+    public int getEstimatedSize() {
+        return FIXED_SIZE + (metadata == null ? 0 : 2 * metadata.length);
+    }
+
+    /**
+     * Returns the material id for block and item rows.
+     */
+    public short getMaterialId() {
+        return table == WorldTable.ENTITIES ? ActivityRollup.NO_MATERIAL : (short) referenceId;
+    }
+
+    public static int getParameterCount(WorldTable table) {
+        return table == WorldTable.ENTITIES ? 8 : 9;
+    }
+
+    /**
+     * Binds this row starting at parameter {@code offset + 1} and returns the
+     * offset for the next row. Without {@code withMetadataId}, the statement
+     * has no metadata id column and the row must not reference any metadata.
+     */
+    int bind(PreparedStatement stmt, int offset, boolean withMetadataId) throws SQLException {
+        stmt.setTimestamp(offset + 1, new Timestamp(datetime));
+        stmt.setByte(offset + 2, actionId);
+        stmt.setInt(offset + 3, actorId);
+        stmt.setInt(offset + 4, x);
+        stmt.setShort(offset + 5, y);
+        stmt.setInt(offset + 6, z);
+        stmt.setInt(offset + 7, referenceId);
+
+        if (metadata == null) {
+            stmt.setNull(offset + 8, Types.VARBINARY);
+        } else {
+            stmt.setBytes(offset + 8, metadata);
+        }
+
+        if (!withMetadataId) {
+            return offset + 8;
+        }
+
+        if (table != WorldTable.ENTITIES) {
+            if (metadataId == NO_METADATA_ID) {
+                stmt.setNull(offset + 9, Types.INTEGER);
+            } else {
+                stmt.setInt(offset + 9, metadataId);
+            }
+        }
+
+        return offset + getParameterCount(table);
+    }
+}
@@ -1,72 +1,286 @@
 package com.amshulman.insight.sql;
 
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public final class ForeignKeyCache {
 
     private static final String ACTORS_QUERY = "SELECT `name`, `id`, `uuid` FROM `actors`";
+    private static final String RECENT_ACTORS_QUERY = ACTORS_QUERY + " ORDER BY `id` DESC LIMIT ?";
     private static final String ACTIONS_QUERY = "SELECT `name`, `id` FROM `actions`";
     private static final String MATERIALS_QUERY = "SELECT `namespace`, `name`, `subtype`, `id` FROM `materials`";
 
-    private final Map<String, Integer> actorCache = new HashMap<>();
-    private final BiMap<UUID, String> uuidCache = HashBiMap.create();
-    private final Map<String, Byte> actionCache = new HashMap<>();
-    private final Table<String, Short, Short> materialCache = HashBasedTable.create();
+    static final int FETCH_SIZE = 10000;
+    public static final int NO_ENTRY = -1;
+
+    private static final int MAX_WARMUP_ATTEMPTS = 3;
+
+    private final ActorCache actorCache;
+    // The id columns are unsigned, so ints hold every id without clashing with NO_ENTRY
+    private final TObjectIntMap<String> actionCache = new TObjectIntHashMap<>(64, 0.5f, NO_ENTRY);
+    private final TObjectIntMap<String> materialCache = new TObjectIntHashMap<>(1024, 0.5f, NO_ENTRY);
 
     private final ReadLock readLock;
     private final WriteLock writeLock;
 
-    public ForeignKeyCache(ConnectionPool cp) throws SQLException {
+    private final ConnectionPool cp;
+    private final ExecutorService warmupThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Insight actor warmup").setDaemon(true).build());
+    private volatile Future<?> actorWarmup;
+    private int warmupAttempts = 0;
+    private int reportedAttempts = 0;
+
+    /**
+     * Loads actions and materials in parallel and starts loading the most
+     * recently created actors in the background. At most {@code actorCapacity}
+     * actors are kept, so callers have to fetch the actors they are missing
+     * with {@link #loadActors} or {@link #loadPlayer} before assuming they
+     * don't exist.
+     */
+    public ForeignKeyCache(final ConnectionPool cp, int actorCapacity) throws SQLException {
+        this.cp = cp;
+        actorCache = new ActorCache(actorCapacity);
+
         ReadWriteLock masterLock = new ReentrantReadWriteLock();
         readLock = (ReadLock) masterLock.readLock();
         writeLock = (WriteLock) masterLock.writeLock();
 
-        try (Connection conn = cp.getConnection();
+        startWarmup();
+
+        ExecutorService loaders = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("Insight cache warmup %d").setDaemon(true).build());
+        try {
+            Future<?> actions = loaders.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws SQLException {
+                    try (Connection conn = cp.getConnection();
+                         PreparedStatement stmt = conn.prepareStatement(ACTIONS_QUERY);
+                         ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            actionCache.put(rs.getString(1), rs.getInt(2));
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            Future<?> materials = loaders.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws SQLException {
+                    try (Connection conn = cp.getConnection();
+                         PreparedStatement stmt = conn.prepareStatement(MATERIALS_QUERY)) {
+                        stmt.setFetchSize(FETCH_SIZE);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                materialCache.put(getMaterialKey(rs.getString(1), rs.getString(2), rs.getShort(3)), rs.getInt(4));
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            // Only actions and materials are needed before we can accept writes
+            await(actions);
+            await(materials);
+        } finally {
+            loaders.shutdown();
+        }
+    }
 
-             PreparedStatement actors = conn.prepareStatement(ACTORS_QUERY);
-             PreparedStatement actions = conn.prepareStatement(ACTIONS_QUERY);
-             PreparedStatement materials = conn.prepareStatement(MATERIALS_QUERY);
+    private static void await(Future<?> future) throws SQLException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        }
+    }
 
-             ResultSet actorsRows = actors.executeQuery();
-             ResultSet actionsRows = actions.executeQuery();
-             ResultSet materialsRows = materials.executeQuery()) {
+    private void startWarmup() {
+        ++warmupAttempts;
+        actorWarmup = warmupThread.submit(new Callable<Void>() {
 
-            while (actorsRows.next()) {
-                actorCache.put(actorsRows.getString(1), actorsRows.getInt(2));
+            @Override
+            public Void call() throws SQLException {
+                loadRecentActors();
+                return null;
+            }
+        });
+    }
 
-                byte[] uuid = actorsRows.getBytes(3);
-                if (uuid != null) {
-                    ByteBuffer bb = ByteBuffer.wrap(uuid);
-                    uuidCache.put(new UUID(bb.getLong(), bb.getLong()), actorsRows.getString(1));
+    private void loadRecentActors() throws SQLException {
+        try (Connection conn = cp.getConnection()) {
+            // PostgreSQL only honors the fetch size outside of autocommit
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement stmt = conn.prepareStatement(RECENT_ACTORS_QUERY)) {
+                stmt.setInt(1, actorCache.capacity());
+                stmt.setFetchSize(FETCH_SIZE);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    List<String> names = new ArrayList<>(FETCH_SIZE);
+                    int[] ids = new int[FETCH_SIZE];
+                    UUID[] uuids = new UUID[FETCH_SIZE];
+
+                    boolean more = true;
+                    while (more) {
+                        // Read a page from the network before taking the lock
+                        names.clear();
+                        while (names.size() < FETCH_SIZE && (more = rs.next())) {
+                            ids[names.size()] = rs.getInt(2);
+                            uuids[names.size()] = getUUID(rs.getBytes(3));
+                            names.add(rs.getString(1));
+                        }
+
+                        writeLock.lock();
+                        try {
+                            for (int i = 0; i < names.size(); ++i) {
+                                actorCache.putIfAbsent(InstancePool.intern(names.get(i)), ids[i], uuids[i]);
+                            }
+                        } finally {
+                            writeLock.unlock();
+                        }
+                    }
                 }
             }
 
-            while (actionsRows.next()) {
-                actionCache.put(actionsRows.getString(1), actionsRows.getByte(2));
+            conn.commit();
+        }
+    }
+
+    /**
+     * Returns whether the initial batch of actors has been loaded. A failed
+     * load is logged and started again, up to a few times.
+     */
+    public synchronized boolean isWarm() {
+        Future<?> warmup = actorWarmup;
+        if (!warmup.isDone()) {
+            return false;
+        }
+
+        try {
+            warmup.get();
+            warmupThread.shutdown();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (reportedAttempts < warmupAttempts) {
+                reportedAttempts = warmupAttempts;
+                System.err.println("Unable to load recent actors, attempt " + warmupAttempts + " of " + MAX_WARMUP_ATTEMPTS);
+                e.getCause().printStackTrace();
             }
 
-            while (materialsRows.next()) {
-                materialCache.put(getMaterialKey(materialsRows.getString(1), materialsRows.getString(2)), materialsRows.getShort(3), materialsRows.getShort(4));
+            if (warmupAttempts >= MAX_WARMUP_ATTEMPTS) {
+                warmupThread.shutdown();
+                return false; // Actors are loaded on demand from now on
             }
+
+            startWarmup();
+            return false;
         }
     }
 
+    /**
+     * Fetches the given actors from the database and caches those that exist.
+     * Must be called without holding either lock.
+     */
+    public void loadActors(Connection conn, Collection<String> names) throws SQLException {
+        List<String> list = new ArrayList<>(names);
+
+        for (int from = 0; from < list.size(); from += MetadataStore.MAX_IN_LIST) {
+            List<String> chunk = list.subList(from, Math.min(list.size(), from + MetadataStore.MAX_IN_LIST));
+
+            try (PreparedStatement stmt = conn.prepareStatement(ACTORS_QUERY + " WHERE `name` IN (" + MetadataStore.placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); ++i) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    writeLock.lock();
+                    try {
+                        while (rs.next()) {
+                            addLoadedActor(rs);
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches players from the database by either their UUID or their name.
+     * Must be called without holding either lock.
+     */
+    public void loadPlayers(Connection conn, Map<UUID, String> players) throws SQLException {
+        List<Map.Entry<UUID, String>> list = new ArrayList<>(players.entrySet());
+        int chunkSize = MetadataStore.MAX_IN_LIST / 2;
+
+        for (int from = 0; from < list.size(); from += chunkSize) {
+            List<Map.Entry<UUID, String>> chunk = list.subList(from, Math.min(list.size(), from + chunkSize));
+            String placeholders = MetadataStore.placeholders(chunk.size());
+
+            try (PreparedStatement stmt = conn.prepareStatement(ACTORS_QUERY + " WHERE `uuid` IN (" + placeholders + ") OR `name` IN (" + placeholders + ")")) {
+                for (int i = 0; i < chunk.size(); ++i) {
+                    stmt.setBytes(i + 1, getBytes(chunk.get(i).getKey()));
+                    stmt.setString(chunk.size() + i + 1, chunk.get(i).getValue());
+                }
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    writeLock.lock();
+                    try {
+                        while (rs.next()) {
+                            addLoadedActor(rs);
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    private void addLoadedActor(ResultSet rs) throws SQLException {
+        actorCache.putIfAbsent(InstancePool.intern(rs.getString(1)), rs.getInt(2), getUUID(rs.getBytes(3)));
+    }
+
+    private static UUID getUUID(byte[] uuidBytes) {
+        if (uuidBytes == null) {
+            return null;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(uuidBytes);
+        return new UUID(bb.getLong(), bb.getLong());
+    }
+
     public void acquireReadLock() {
         readLock.lock();
     }
@@ -94,11 +308,11 @@ public final class ForeignKeyCache {
     }
 
     public boolean containsActor(String actor) {
-        return actorCache.containsKey(actor);
+        return actorCache.contains(actor);
     }
 
     public boolean containsUUID(UUID uuid) {
-        return uuidCache.containsKey(uuid);
+        return actorCache.containsUUID(uuid);
     }
 
     public boolean containsAction(String action) {
@@ -106,50 +320,80 @@ public final class ForeignKeyCache {
     }
 
     public boolean containsMaterial(String namespace, String name, short subtype) {
-        return materialCache.contains(getMaterialKey(namespace, name), subtype);
+        return materialCache.containsKey(getMaterialKey(namespace, name, subtype));
     }
 
     public int getActorId(String actor) {
-        return actorCache.get(actor);
+        return actorCache.getId(actor);
     }
 
     public String getActor(UUID uuid) {
-        return uuidCache.get(uuid);
+        return actorCache.getName(uuid);
     }
 
+    /**
+     * Returns the id of a known action. Throws if the action isn't cached.
+     */
     public byte getActionId(String action) {
-        return actionCache.get(action);
+        int id = actionCache.get(action);
+        if (id == NO_ENTRY) {
+            throw new IllegalStateException("Unknown action " + action);
+        }
+        return (byte) id;
     }
 
-    public short getMaterialId(String namespace, String name, short subtype) {
-        return materialCache.get(getMaterialKey(namespace, name), subtype);
+    /**
+     * Returns the id of a known material. Throws if the material isn't
+     * cached.
+     */
+    public int getMaterialId(String namespace, String name, short subtype) {
+        int id = materialCache.get(getMaterialKey(namespace, name, subtype));
+        if (id == NO_ENTRY) {
+            throw new IllegalStateException("Unknown material " + getMaterialKey(namespace, name, subtype));
+        }
+        return id;
     }
 
     public UUID getUUID(String actor) {
-        return uuidCache.inverse().get(actor);
+        return actorCache.getUUID(actor);
     }
 
     public void addActor(String actor, Integer id) {
-        actorCache.put(actor, id);
+        actorCache.put(InstancePool.intern(actor), id);
+    }
+
+    /**
+     * Caches an actor learned about from elsewhere, unless we already know
+     * about it.
+     */
+    public void addActorIfAbsent(String actor, int id) {
+        actorCache.putIfAbsent(InstancePool.intern(actor), id, null);
     }
 
     public void addUUID(UUID uuid, String actor) {
-        uuidCache.put(uuid, actor);
+        actorCache.putUUID(uuid, actor);
     }
 
-    public void addAction(String action, Byte id) {
+    public void addAction(String action, int id) {
         actionCache.put(action, id);
     }
 
-    public void addMaterial(String namespace, String name, short subtype, short id) {
-        materialCache.put(getMaterialKey(namespace, name), subtype, id);
+    public void addMaterial(String namespace, String name, short subtype, int id) {
+        materialCache.put(getMaterialKey(namespace, name, subtype), id);
     }
 
     public int removeActor(String actor) {
         return actorCache.remove(actor);
     }
 
-    private static String getMaterialKey(String namespace, String name) {
-        return namespace + name;
+    private static String getMaterialKey(String namespace, String name, short subtype) {
+        return namespace + ':' + name + ':' + subtype;
+    }
+
+    public static byte[] getBytes(UUID uuid) {
+        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
+        bb.putLong(uuid.getMostSignificantBits());
+        bb.putLong(uuid.getLeastSignificantBits());
+        return bb.array();
     }
 }
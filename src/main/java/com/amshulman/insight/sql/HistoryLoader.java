@@ -0,0 +1,179 @@
+package com.amshulman.insight.sql;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Writes rows brought over from another database, resolving their names to
+ * the ids used by this one. Every chunk is written in a single transaction
+ * together with its entry in {@code transfer_log}, so a chunk is either
+ * loaded and recorded in full or not at all.
+ */
+public final class HistoryLoader {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final ForeignKeyCache keyCache;
+    private final KeyResolver keys;
+    private final MetadataCodec codec;
+    private final MetadataStore metadataStore;
+    private final WorldRegistry registry;
+    private final ConnectionPool cp;
+    private final WriterSessionPool sessions;
+
+    public HistoryLoader(ConnectionPool cp, WriterSessionPool sessions, ForeignKeyCache keyCache, KeyResolver keys, MetadataCodec codec, MetadataStore metadataStore,
+                        WorldRegistry registry) throws SQLException {
+        this.cp = cp;
+        this.keyCache = keyCache;
+        this.keys = keys;
+        this.codec = codec;
+        this.metadataStore = metadataStore;
+        this.registry = registry;
+        this.sessions = sessions;
+
+        try (Connection conn = cp.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS `transfer_log` (" +
+                         "  `chunk` varchar(255) NOT NULL," +
+                         "  `rows` int(10) unsigned NOT NULL," +
+                         "  PRIMARY KEY (`chunk`)" +
+                         ") ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8;");
+        }
+    }
+
+    /**
+     * Returns the names of the chunks loaded so far.
+     */
+    public Set<String> getLoadedChunks() throws SQLException {
+        Set<String> chunks = new HashSet<>();
+
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT `chunk` FROM `transfer_log`");
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                chunks.add(rs.getString(1));
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Loads the rows of one chunk. Metadata must be in its serialized form,
+     * as {@link HistoryRow}s always are, and the world tables must exist.
+     */
+    public void load(String chunk, List<HistoryRow> rows) throws SQLException {
+        Map<String, List<byte[]>> referenced = new HashMap<>();
+        Set<String> actors = new HashSet<>();
+
+        for (HistoryRow row : rows) {
+            actors.add(row.getActor());
+            if (row.getActee() != null) {
+                actors.add(row.getActee());
+            }
+
+            // Tables that can't reference stored metadata yet get it inlined
+            if (row.getMetadata() != null && !MetadataStore.shouldInline(row.getMetadata()) && registry.hasMetadataIds(row.getWorld())) {
+                List<byte[]> blobs = referenced.get(row.getWorld());
+                if (blobs == null) {
+                    blobs = new ArrayList<>();
+                    referenced.put(row.getWorld(), blobs);
+                }
+                blobs.add(row.getMetadata());
+            }
+        }
+
+        Map<String, Map<HashCode, Integer>> metadataIds = new HashMap<>(referenced.size());
+        for (Map.Entry<String, List<byte[]>> entry : referenced.entrySet()) {
+            metadataIds.put(entry.getKey(), metadataStore.store(entry.getKey(), entry.getValue()));
+        }
+
+        keys.loadUnknownActors(actors);
+        List<EncodedRow> encoded = new ArrayList<>(rows.size());
+        TObjectIntMap<String> actorIds = new TObjectIntHashMap<>(actors.size(), 0.5f, ForeignKeyCache.NO_ENTRY);
+
+        keyCache.acquireReadLock();
+        try {
+            for (HistoryRow row : rows) {
+                keys.resolveActor(row.getActor(), actorIds);
+                keys.checkAction(row.getAction());
+
+                int referenceId;
+                if (row.getTable() == WorldTable.ENTITIES) {
+                    keys.resolveActor(row.getActee(), actorIds);
+                    referenceId = actorIds.get(row.getActee());
+                } else {
+                    keys.checkMaterial(row.getMaterialNamespace(), row.getMaterialName(), row.getMaterialSubtype());
+                    referenceId = keyCache.getMaterialId(row.getMaterialNamespace(), row.getMaterialName(), row.getMaterialSubtype());
+                }
+
+                byte[] metadata = null;
+                int metadataId = EncodedRow.NO_METADATA_ID;
+                Map<HashCode, Integer> worldMetadataIds = metadataIds.get(row.getWorld());
+                if (row.getMetadata() == null) {
+                    // Nothing to store
+                } else if (worldMetadataIds == null || MetadataStore.shouldInline(row.getMetadata())) {
+                    metadata = codec.encode(row.getMetadata());
+                } else {
+                    metadataId = worldMetadataIds.get(MetadataStore.hash(row.getMetadata()));
+                }
+
+                encoded.add(new EncodedRow(row.getWorld(), row.getTable(), row.getDatetime(), keyCache.getActionId(row.getAction()), actorIds.get(row.getActor()),
+                                           row.getX(), (short) row.getY(), row.getZ(), referenceId, metadata, metadataId));
+            }
+        } finally {
+            keyCache.releaseReadLock();
+        }
+
+        for (int attempt = 1;; ++attempt) {
+            try {
+                write(chunk, encoded);
+                return;
+            } catch (SQLException e) {
+                if (!BatchCommitter.isTransient(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                BatchCommitter.backOff(attempt, e);
+            }
+        }
+    }
+
+    private void write(String chunk, List<EncodedRow> rows) throws SQLException {
+        WriterSession session = sessions.borrow();
+        boolean committed = false;
+        try {
+            BatchCommitter.writeRows(session, rows, sessions.getMaxStatementSize());
+
+            PreparedStatement log = session.prepare("INSERT INTO `transfer_log`(`chunk`, `rows`) VALUES (?, ?)");
+            log.setString(1, chunk);
+            log.setInt(2, rows.size());
+            log.executeUpdate();
+
+            session.getConnection().commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                try {
+                    session.getConnection().rollback();
+                } catch (SQLException e) {
+                    // The session is thrown away either way
+                }
+            }
+            sessions.release(session, !committed);
+        }
+    }
+}
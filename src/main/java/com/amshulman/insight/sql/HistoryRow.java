@@ -0,0 +1,73 @@
+package com.amshulman.insight.sql;
+
+import lombok.Value;
+
+import com.amshulman.insight.row.BlockRowEntry;
+import com.amshulman.insight.row.EntityRowEntry;
+import com.amshulman.insight.row.ItemRowEntry;
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.types.InsightMaterial;
+import com.amshulman.insight.types.MaterialCompat;
+
+/**
+ * A stored row with every foreign key resolved to its name, so that it can be
+ * kept outside of the database it came from. Metadata is the serialized blob
+ * as produced by {@link com.amshulman.insight.util.SerializationUtil}.
+ */
+@Value
+public class HistoryRow {
+
+    WorldTable table;
+    long datetime;
+    String actor;
+    String action;
+    String world;
+    int x;
+    int y;
+    int z;
+    String materialNamespace;
+    String materialName;
+    short materialSubtype;
+    String actee;
+    byte[] metadata;
+
+    /**
+     * Converts a submitted row the same way {@link DatabaseDumper} stores it.
+     */
+    public static HistoryRow of(RowEntry row) {
+        WorldTable table;
+        String namespace = null, name = null, actee = null;
+        short subtype = 0;
+
+        if (row instanceof BlockRowEntry) {
+            InsightMaterial m = MaterialCompat.getInsightMaterial(((BlockRowEntry) row).getBlock());
+            table = WorldTable.BLOCKS;
+            namespace = m.getNamespace();
+            name = m.getName();
+            subtype = m.getSubtype();
+        } else if (row instanceof ItemRowEntry) {
+            ItemRowEntry itemRow = (ItemRowEntry) row;
+            InsightMaterial m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
+            table = WorldTable.ITEMS;
+            namespace = m.getNamespace();
+            name = m.getName(); // damage value is stored in meta
+        } else if (row instanceof EntityRowEntry) {
+            table = WorldTable.ENTITIES;
+            actee = ((EntityRowEntry) row).getActee();
+        } else {
+            throw new IllegalArgumentException("Unknown row type " + row.getClass().getName());
+        }
+
+        int y = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, row.getY()));
+        return new HistoryRow(table, row.getDatetime(), row.getActor(), row.getAction(), row.getWorld(), row.getX(), y, row.getZ(),
+                              namespace, name, subtype, actee, DatabaseDumper.serializeMetadata(row));
+    }
+
+    public HistoryRow withDatetime(long newDatetime) {
+        return new HistoryRow(table, newDatetime, actor, action, world, x, y, z, materialNamespace, materialName, materialSubtype, actee, metadata);
+    }
+
+    public HistoryRow withMetadata(byte[] newMetadata) {
+        return new HistoryRow(table, datetime, actor, action, world, x, y, z, materialNamespace, materialName, materialSubtype, actee, newMetadata);
+    }
+}
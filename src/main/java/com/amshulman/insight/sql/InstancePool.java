@@ -0,0 +1,49 @@
+package com.amshulman.insight.sql;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.types.InsightMaterial;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Canonical instances of the names and materials that records are made of,
+ * so that result sets kept around for paging share them instead of each
+ * holding their own copies. Entries are weakly referenced and disappear once
+ * nothing else uses them; {@link ForeignKeyCache} and {@link WorldRegistry}
+ * intern the names they hold, which keeps the common ones alive.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class InstancePool {
+
+    private static final Interner<String> strings = Interners.newWeakInterner();
+    private static final Cache<MaterialKey, InsightMaterial> materials = CacheBuilder.newBuilder().weakValues().build();
+
+    public static String intern(String s) {
+        return s == null ? null : strings.intern(s);
+    }
+
+    public static InsightMaterial getMaterial(String namespace, String name, short subtype) {
+        MaterialKey key = new MaterialKey(namespace, name, subtype);
+        InsightMaterial material = materials.getIfPresent(key);
+        if (material == null) {
+            material = new InsightMaterial(intern(namespace), intern(name), subtype);
+            materials.put(key, material); // Losing a race only costs a duplicate
+        }
+        return material;
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class MaterialKey {
+
+        final String namespace;
+        final String name;
+        final short subtype;
+    }
+}
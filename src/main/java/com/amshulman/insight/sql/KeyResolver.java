@@ -0,0 +1,161 @@
+package com.amshulman.insight.sql;
+
+import gnu.trove.map.TObjectIntMap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Makes sure actors, actions and materials have rows before anything that
+ * references them is written, adding the ones that are missing. Apart from
+ * {@link #loadUnknownActors}, every method expects the caller to hold the
+ * read lock of the {@link ForeignKeyCache}.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class KeyResolver {
+
+    ConnectionPool cp;
+    ForeignKeyCache keyCache;
+
+    /**
+     * The cache only holds some of the actors, so an actor we don't know about
+     * may well exist already. Look them all up in one go rather than risk
+     * inserting duplicates.
+     */
+    public void loadUnknownActors(Collection<String> names) {
+        Set<String> unknown = new HashSet<>();
+
+        keyCache.acquireReadLock();
+        try {
+            for (String name : names) {
+                if (!keyCache.containsActor(name)) {
+                    unknown.add(name);
+                }
+            }
+        } finally {
+            keyCache.releaseReadLock();
+        }
+
+        if (unknown.isEmpty()) {
+            return;
+        }
+
+        try (Connection conn = cp.getConnection()) {
+            keyCache.loadActors(conn, unknown);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void resolveActor(String actorName, TObjectIntMap<String> actorIds) throws SQLException {
+        if (!actorIds.containsKey(actorName)) {
+            actorIds.put(actorName, checkActor(actorName));
+        }
+    }
+
+    /**
+     * Returns the actor's id, adding the actor if it doesn't exist. Actors
+     * can be evicted from the cache at any time, so a miss doesn't mean the
+     * actor is new; the upsert finds existing ones too.
+     */
+    public int checkActor(String actorName) throws SQLException {
+        int id = keyCache.getActorId(actorName);
+        if (id != ForeignKeyCache.NO_ENTRY) {
+            return id;
+        }
+
+        keyCache.upgradeReadLock();
+        try {
+            id = keyCache.getActorId(actorName);
+            if (id == ForeignKeyCache.NO_ENTRY) {
+                id = upsert(DictionaryLog.ACTOR, "INSERT IGNORE INTO `actors`(`name`) VALUES (?)", "SELECT `id` FROM `actors` WHERE `name` = ?", actorName);
+                keyCache.addActor(actorName, id);
+            }
+            return id;
+        } finally {
+            keyCache.downgradeWriteLock();
+        }
+    }
+
+    public void checkAction(String actionName) throws SQLException {
+        if (!keyCache.containsAction(actionName)) {
+            keyCache.upgradeReadLock();
+            try {
+                if (!keyCache.containsAction(actionName)) {
+                    keyCache.addAction(actionName, upsert(DictionaryLog.ACTION, "INSERT IGNORE INTO `actions`(`name`) VALUES (?)", "SELECT `id` FROM `actions` WHERE `name` = ?", actionName));
+                }
+            } finally {
+                keyCache.downgradeWriteLock();
+            }
+        }
+    }
+
+    public void checkMaterial(String namespace, String materialName, short subtype) throws SQLException {
+        if (!keyCache.containsMaterial(namespace, materialName, subtype)) {
+            keyCache.upgradeReadLock();
+            try {
+                if (!keyCache.containsMaterial(namespace, materialName, subtype)) {
+                    int id = upsert(DictionaryLog.MATERIAL, "INSERT IGNORE INTO `materials`(`namespace`, `name`, `subtype`) VALUES (?, ?, ?)",
+                                    "SELECT `id` FROM `materials` WHERE `namespace` = ? AND `name` = ? AND `subtype` = ?", namespace, materialName, subtype);
+                    keyCache.addMaterial(namespace, materialName, subtype, id);
+                }
+            } finally {
+                keyCache.downgradeWriteLock();
+            }
+        }
+    }
+
+    /**
+     * Adds an entry unless another server sharing the database already has,
+     * and returns its id either way. Entries we add are logged for the other
+     * servers.
+     */
+    private int upsert(int kind, String insert, String select, Object... values) throws SQLException {
+        try (Connection conn = cp.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement insertStmt = conn.prepareStatement(insert, Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement selectStmt = conn.prepareStatement(select)) {
+                for (int i = 0; i < values.length; ++i) {
+                    insertStmt.setObject(i + 1, values[i]);
+                    selectStmt.setObject(i + 1, values[i]);
+                }
+
+                int id;
+                if (insertStmt.executeUpdate() == 1) {
+                    try (ResultSet rs = insertStmt.getGeneratedKeys()) {
+                        rs.next();
+                        id = rs.getInt(1);
+                    }
+                    DictionaryLog.record(conn, kind, id);
+                } else {
+                    try (ResultSet rs = selectStmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Unable to add or find " + values[0]);
+                        }
+                        id = rs.getInt(1);
+                    }
+                }
+
+                conn.commit();
+                return id;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
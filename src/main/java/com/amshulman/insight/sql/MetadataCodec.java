@@ -0,0 +1,315 @@
+package com.amshulman.insight.sql;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes serialized metadata blobs for storage. Blobs are deflated against a
+ * preset dictionary that is trained on the first blobs this server writes and
+ * shared with other servers through the {@code metadata_dictionaries} table.
+ * Training and storing the dictionary happen on the given executor so they
+ * never hold up the thread writing rows.
+ * <p>
+ * Encoded blobs start with a header that serialized metadata never does, so
+ * rows written before this codec existed are returned from {@link #decode}
+ * untouched. Blobs that would not shrink are stored in that legacy form too.
+ */
+public final class MetadataCodec {
+
+    private static final String DICTIONARIES_QUERY = "SELECT `id`, `dictionary` FROM `metadata_dictionaries`";
+    private static final String DICTIONARY_QUERY = "SELECT `dictionary` FROM `metadata_dictionaries` WHERE `id` = ?";
+    private static final String INSERT_DICTIONARY = "INSERT INTO `metadata_dictionaries`(`dictionary`) VALUES (?)";
+
+    private static final byte MAGIC_0 = 0x00;
+    private static final byte MAGIC_1 = 'I';
+    private static final byte VERSION_DEFLATE = 1;
+    private static final int HEADER_LENGTH = 4;
+    private static final int NO_DICTIONARY = 0;
+    // The header only has a byte for the dictionary id
+    private static final int MAX_DICTIONARY_ID = 0xFF;
+    private static final int STORE_RETRY_MINUTES = 1;
+
+    static final int TRAINING_SAMPLE_SIZE = 2048;
+    static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+    private final ConnectionPool cp;
+    private final ScheduledExecutorService executor;
+    private final TIntObjectMap<byte[]> dictionaries = new TIntObjectHashMap<>();
+
+    // The id goes into every header, so it has to be published together with the bytes
+    private volatile ActiveDictionary active;
+
+    private List<byte[]> samples;
+
+    public MetadataCodec(ConnectionPool cp, ScheduledExecutorService executor) throws SQLException {
+        this.cp = cp;
+        this.executor = executor;
+
+        int activeId = NO_DICTIONARY;
+        boolean idsExhausted = false;
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(DICTIONARIES_QUERY);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                dictionaries.put(id, rs.getBytes(2));
+
+                if (id > MAX_DICTIONARY_ID) {
+                    idsExhausted = true;
+                } else if (id > activeId) {
+                    activeId = id;
+                }
+            }
+        }
+
+        if (activeId != NO_DICTIONARY) {
+            active = new ActiveDictionary(activeId, dictionaries.get(activeId));
+        } else if (!idsExhausted) {
+            samples = new ArrayList<>(TRAINING_SAMPLE_SIZE);
+        }
+    }
+
+    public byte[] encode(byte[] serialized) {
+        ActiveDictionary current = active;
+        byte[] dictionary = current == null ? null : current.bytes;
+        int dictionaryId = current == null ? NO_DICTIONARY : current.id;
+
+        if (current == null) {
+            sample(serialized);
+        }
+
+        if (serialized.length <= HEADER_LENGTH) {
+            return serialized;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(serialized);
+            deflater.finish();
+
+            byte[] buffer = new byte[serialized.length];
+            int length = HEADER_LENGTH;
+            buffer[0] = MAGIC_0;
+            buffer[1] = MAGIC_1;
+            buffer[2] = VERSION_DEFLATE;
+            buffer[3] = (byte) dictionaryId;
+
+            while (!deflater.finished()) {
+                if (length >= buffer.length) {
+                    return serialized; // Compression isn't gaining us anything
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            return length < serialized.length ? Arrays.copyOf(buffer, length) : serialized;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decode(byte[] stored) {
+        if (stored == null || !isEncoded(stored)) {
+            return stored;
+        }
+
+        if (stored[2] != VERSION_DEFLATE) {
+            throw new IllegalArgumentException("Unknown metadata encoding version " + stored[2]);
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH);
+
+            int dictionaryId = stored[3] & 0xFF;
+            if (dictionaryId != NO_DICTIONARY) {
+                inflater.setDictionary(getDictionary(dictionaryId));
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated metadata");
+                }
+                out.write(buffer, 0, length);
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isEncoded(byte[] stored) {
+        return stored.length >= HEADER_LENGTH && stored[0] == MAGIC_0 && stored[1] == MAGIC_1;
+    }
+
+    private byte[] getDictionary(int id) {
+        synchronized (dictionaries) {
+            byte[] dictionary = dictionaries.get(id);
+            if (dictionary != null) {
+                return dictionary;
+            }
+
+            // Another server may have trained this dictionary after we started
+            try (Connection conn = cp.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(DICTIONARY_QUERY)) {
+                stmt.setInt(1, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new IllegalArgumentException("Unknown metadata dictionary " + id);
+                    }
+                    dictionary = rs.getBytes(1);
+                }
+            } catch (SQLException e) {
+                throw new IllegalArgumentException(e);
+            }
+
+            dictionaries.put(id, dictionary);
+            return dictionary;
+        }
+    }
+
+    private void sample(byte[] serialized) {
+        final List<byte[]> trainingSet;
+
+        synchronized (this) {
+            if (samples == null) {
+                return;
+            }
+
+            samples.add(serialized);
+            if (samples.size() < TRAINING_SAMPLE_SIZE) {
+                return;
+            }
+
+            trainingSet = samples;
+            samples = null;
+        }
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                store(train(trainingSet));
+            }
+        });
+    }
+
+    /**
+     * Publishes a trained dictionary and starts using it, trying again later
+     * if the database can't be reached.
+     */
+    private void store(final byte[] dictionary) {
+        int id;
+        try (Connection conn = cp.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(INSERT_DICTIONARY, PreparedStatement.RETURN_GENERATED_KEYS)) {
+            stmt.setBytes(1, dictionary);
+            stmt.executeUpdate();
+
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                rs.next();
+                id = rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            executor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    store(dictionary);
+                }
+            }, STORE_RETRY_MINUTES, TimeUnit.MINUTES);
+            return;
+        }
+
+        synchronized (dictionaries) {
+            dictionaries.put(id, dictionary);
+        }
+
+        // Ids only grow, so there's no point training another one
+        if (id > MAX_DICTIONARY_ID) {
+            System.err.println("Metadata dictionary id " + id + " doesn't fit in a header, metadata will be compressed without a dictionary");
+            return;
+        }
+
+        active = new ActiveDictionary(id, dictionary);
+    }
+
+    /**
+     * Builds a preset dictionary out of the most common distinct blobs. The
+     * most frequent ones go last since deflate encodes nearby matches cheaper.
+     */
+    static byte[] train(List<byte[]> trainingSet) {
+        final Map<ByteBuffer, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : trainingSet) {
+            ByteBuffer key = ByteBuffer.wrap(sample);
+            Integer count = frequencies.get(key);
+            frequencies.put(key, count == null ? 1 : count + 1);
+        }
+
+        List<Entry<ByteBuffer, Integer>> ranked = new ArrayList<>(frequencies.entrySet());
+        Collections.sort(ranked, new Comparator<Entry<ByteBuffer, Integer>>() {
+
+            @Override
+            public int compare(Entry<ByteBuffer, Integer> o1, Entry<ByteBuffer, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Entry<ByteBuffer, Integer> entry : ranked) {
+            byte[] sample = entry.getKey().array();
+            if (size + sample.length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            chosen.add(sample);
+            size += sample.length;
+        }
+
+        ByteBuffer dictionary = ByteBuffer.allocate(size);
+        for (int i = chosen.size() - 1; i >= 0; --i) {
+            dictionary.put(chosen.get(i));
+        }
+
+        return dictionary.array();
+    }
+
+    private static final class ActiveDictionary {
+
+        final int id;
+        final byte[] bytes;
+
+        ActiveDictionary(int id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+}
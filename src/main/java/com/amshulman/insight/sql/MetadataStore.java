@@ -0,0 +1,158 @@
+package com.amshulman.insight.sql;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Content-addressed storage for metadata blobs. Each world has a
+ * {@code <world>_metadata} table keyed by the SHA-1 of the serialized blob,
+ * and block and item rows reference it through their {@code metadataid}
+ * column. Blobs small enough that a reference would not save anything stay
+ * inline in the {@code metadata} column.
+ */
+@RequiredArgsConstructor
+public final class MetadataStore {
+
+    static final int INLINE_LIMIT = 32;
+    static final int CACHE_SIZE = 16384;
+    static final int MAX_IN_LIST = 500;
+
+    private static final HashFunction HASH = Hashing.sha1();
+
+    private final ConnectionPool cp;
+    private final MetadataCodec codec;
+    private final Cache<Key, Integer> ids = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    public static boolean shouldInline(byte[] serialized) {
+        return serialized.length <= INLINE_LIMIT;
+    }
+
+    public static HashCode hash(byte[] serialized) {
+        return HASH.hashBytes(serialized);
+    }
+
+    /**
+     * Returns the row id for each blob, storing any blobs that are not in the
+     * world's metadata table yet. This runs on its own connection so that ids
+     * cached here never refer to rows from a transaction that rolled back.
+     * Throws if any blob could not be stored, so every blob gets an id.
+     */
+    public Map<HashCode, Integer> store(String world, Collection<byte[]> blobs) throws SQLException {
+        Map<HashCode, Integer> resolved = new HashMap<>(blobs.size());
+        Map<HashCode, byte[]> missing = new HashMap<>();
+
+        for (byte[] blob : blobs) {
+            HashCode hash = hash(blob);
+            Integer id = ids.getIfPresent(new Key(world, hash));
+            if (id != null) {
+                resolved.put(hash, id);
+            } else {
+                missing.put(hash, blob);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return resolved;
+        }
+
+        try (Connection conn = cp.getConnection();
+             PreparedStatement insert = conn.prepareStatement("INSERT IGNORE INTO `" + world + "_metadata`(`hash`, `metadata`) VALUES (?, ?)")) {
+            conn.setAutoCommit(false);
+            for (Map.Entry<HashCode, byte[]> entry : missing.entrySet()) {
+                insert.setBytes(1, entry.getKey().asBytes());
+                insert.setBytes(2, codec.encode(entry.getValue()));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+
+            List<HashCode> hashes = new ArrayList<>(missing.keySet());
+            for (int from = 0; from < hashes.size(); from += MAX_IN_LIST) {
+                List<HashCode> chunk = hashes.subList(from, Math.min(hashes.size(), from + MAX_IN_LIST));
+                try (PreparedStatement select = conn.prepareStatement("SELECT `id`, `hash` FROM `" + world + "_metadata` WHERE `hash` IN (" + placeholders(chunk.size()) + ")")) {
+                    int i = 1;
+                    for (HashCode hash : chunk) {
+                        select.setBytes(i++, hash.asBytes());
+                    }
+
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            HashCode hash = HashCode.fromBytes(rs.getBytes(2));
+                            int id = rs.getInt(1);
+                            ids.put(new Key(world, hash), id);
+                            resolved.put(hash, id);
+                        }
+                    }
+                }
+            }
+            conn.commit();
+        }
+
+        for (HashCode hash : missing.keySet()) {
+            if (!resolved.containsKey(hash)) {
+                throw new SQLException("Unable to store metadata " + hash + " of " + world);
+            }
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Fetches the stored blobs for the given ids of a single world. They are
+     * returned still encoded so that callers can decode them row by row.
+     */
+    public TIntObjectMap<byte[]> fetch(Connection conn, String world, TIntSet metadataIds) throws SQLException {
+        TIntObjectMap<byte[]> blobs = new TIntObjectHashMap<>(metadataIds.size());
+
+        int[] all = metadataIds.toArray();
+        for (int from = 0; from < all.length; from += MAX_IN_LIST) {
+            int to = Math.min(all.length, from + MAX_IN_LIST);
+
+            try (PreparedStatement select = conn.prepareStatement("SELECT `id`, `metadata` FROM `" + world + "_metadata` WHERE `id` IN (" + placeholders(to - from) + ")")) {
+                for (int i = from; i < to; ++i) {
+                    select.setInt(i - from + 1, all[i]);
+                }
+
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        blobs.put(rs.getInt(1), rs.getBytes(2));
+                    }
+                }
+            }
+        }
+
+        return blobs;
+    }
+
+    static String placeholders(int count) {
+        return Strings.repeat("?, ", count - 1) + "?";
+    }
+
+    @Value
+    private static class Key {
+
+        String world;
+        HashCode hash;
+    }
+}
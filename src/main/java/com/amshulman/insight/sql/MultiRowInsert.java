@@ -0,0 +1,97 @@
+package com.amshulman.insight.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Writes rows with explicit {@code INSERT ... VALUES (...), (...)} statements
+ * rather than relying on the driver to rewrite batches, which neither driver
+ * does consistently.
+ * <p>
+ * Rows are sent in chunks whose size is a power of two, so each world and
+ * table only ever needs a handful of distinct statements. Chunks are kept
+ * under both the server's packet size and the drivers' parameter limits.
+ * Chunks that don't reference stored metadata leave out the column that
+ * does, since tables that are still being upgraded don't have it yet.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+final class MultiRowInsert {
+
+    static final int MAX_ROWS = 1024;
+
+    // PostgreSQL sends the parameter count as a signed short
+    private static final int MAX_PARAMETERS = Short.MAX_VALUE;
+
+    private static final ConcurrentMap<String, String> sqlCache = new ConcurrentHashMap<>();
+
+    static void write(WriterSession session, String world, WorldTable table, List<EncodedRow> rows, long maxStatementSize) throws SQLException {
+        int parameters = EncodedRow.getParameterCount(table);
+        int maxRows = Integer.highestOneBit(Math.min(MAX_ROWS, MAX_PARAMETERS / parameters));
+
+        long[] sizes = new long[rows.size() + 1];
+        for (int i = 0; i < rows.size(); ++i) {
+            sizes[i + 1] = sizes[i] + rows.get(i).getEstimatedSize();
+        }
+
+        int from = 0;
+        while (from < rows.size()) {
+            int count = Math.min(maxRows, Integer.highestOneBit(rows.size() - from));
+            while (count > 1 && sizes[from + count] - sizes[from] > maxStatementSize) {
+                count >>= 1;
+            }
+
+            boolean withMetadataId = false;
+            if (table != WorldTable.ENTITIES) {
+                for (int i = from; i < from + count && !withMetadataId; ++i) {
+                    withMetadataId = rows.get(i).getMetadataId() != EncodedRow.NO_METADATA_ID;
+                }
+            }
+
+            PreparedStatement stmt = session.prepare(getSql(world, table, count, withMetadataId));
+            int offset = 0;
+            for (int i = from; i < from + count; ++i) {
+                offset = rows.get(i).bind(stmt, offset, withMetadataId);
+            }
+            stmt.executeUpdate();
+
+            from += count;
+        }
+    }
+
+    private static String getSql(String world, WorldTable table, int rows, boolean withMetadataId) {
+        String key = table.getTableName(world) + ':' + rows + (withMetadataId ? ":id" : "");
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            sql = buildSql(world, table, rows, withMetadataId);
+            sqlCache.putIfAbsent(key, sql);
+        }
+        return sql;
+    }
+
+    private static String buildSql(String world, WorldTable table, int rows, boolean withMetadataId) {
+        String values = withMetadataId ? "(?, ?, ?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?, ?, ?)";
+
+        StringBuilder sql = new StringBuilder(64 + rows * (values.length() + 2));
+        sql.append("INSERT INTO `").append(table.getTableName(world)).append("`(`datetime`, `actionid`, `actorid`, `x`, `y`, `z`, `")
+           .append(table.getReferenceColumn()).append("`, `metadata`");
+        if (withMetadataId) {
+            sql.append(", `metadataid`");
+        }
+        sql.append(") VALUES ");
+
+        for (int i = 0; i < rows; ++i) {
+            if (i != 0) {
+                sql.append(", ");
+            }
+            sql.append(values);
+        }
+
+        return sql.toString();
+    }
+}
@@ -0,0 +1,419 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amshulman.insight.util.PlayerUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Queues player registrations so logins never wait on the database. Players
+ * who join within a short window of each other are written in one
+ * transaction, and repeated registrations of the same UUID are coalesced.
+ * <p>
+ * {@link DatabaseDumper} calls {@link #flush()} before resolving actors, so
+ * rows from a player are never written before the player is registered.
+ * Players waiting on a rename lookup can't be registered yet, so the flush
+ * returns their names and the dumper holds their rows back rather than
+ * writing them as the name's previous owner. Registrations that fail are
+ * queued again and retried a few times.
+ */
+public final class PlayerRegistrar {
+
+    private static final long COALESCE_MILLIS = 50;
+    private static final long RETRY_MILLIS = 5000;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final ConnectionPool cp;
+    private final ForeignKeyCache keyCache;
+    private final ScheduledExecutorService flushThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Insight player registration").setDaemon(true).build());
+    // Name lookups go over HTTP, so they get a thread of their own
+    private final ExecutorService nameLookupThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Insight player name lookup").setDaemon(true).build());
+
+    private final Object flushLock = new Object();
+    private Map<UUID, String> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+    private final Map<UUID, Integer> attempts = new HashMap<>();
+    // Names whose new owner is waiting on the rename lookup of the old one, with the number of lookups
+    private final Map<String, Integer> lookingUp = new HashMap<>();
+    private boolean closing = false;
+
+    public PlayerRegistrar(ConnectionPool cp, ForeignKeyCache keyCache) {
+        this.cp = cp;
+        this.keyCache = keyCache;
+    }
+
+    public void register(String playerName, UUID uuid) {
+        synchronized (this) {
+            pending.put(uuid, playerName);
+            attempts.remove(uuid);
+        }
+        schedule(COALESCE_MILLIS);
+    }
+
+    private void schedule(long delayMillis) {
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try {
+            flushThread.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closing, the final flush picks the registration up
+        }
+    }
+
+    /**
+     * Queues registrations that could not be written again, unless the
+     * player registered again in the meantime or has failed too often.
+     */
+    private void retry(Map<UUID, String> players) {
+        synchronized (this) {
+            for (Map.Entry<UUID, String> entry : players.entrySet()) {
+                UUID uuid = entry.getKey();
+                if (pending.containsKey(uuid)) {
+                    continue;
+                }
+
+                Integer failures = attempts.get(uuid);
+                failures = failures == null ? 1 : failures + 1;
+                if (failures >= MAX_ATTEMPTS) {
+                    System.err.println("Giving up on registering " + entry.getValue() + " (" + uuid + ")");
+                    attempts.remove(uuid);
+                    continue;
+                }
+
+                attempts.put(uuid, failures);
+                pending.put(uuid, entry.getValue());
+            }
+        }
+        schedule(RETRY_MILLIS);
+    }
+
+    /**
+     * Writes every queued registration and waits for any flush already in
+     * progress to finish. Never waits for rename lookups; instead returns the
+     * names that are still being looked up, whose rows mustn't be written yet.
+     */
+    public Set<String> flush() {
+        synchronized (flushLock) {
+            // Taken first, so a lookup finishing now has queued its registrations for the write below
+            Set<String> unresolved;
+            synchronized (this) {
+                unresolved = new HashSet<>(lookingUp.keySet());
+            }
+
+            writePending();
+            return unresolved;
+        }
+    }
+
+    private void writePending() {
+        Map<UUID, String> players;
+        synchronized (this) {
+            players = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+
+        if (players.isEmpty()) {
+            return;
+        }
+
+        try (Connection conn = cp.getConnection()) {
+            keyCache.loadPlayers(conn, players);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            retry(players);
+            return;
+        }
+
+        List<Registration> registrations = plan(players);
+        if (registrations.isEmpty()) {
+            return;
+        }
+
+        try {
+            write(registrations);
+            succeeded(registrations);
+        } catch (SQLException e) {
+            // Find out who is to blame without holding back everybody else
+            Map<UUID, String> failed = new LinkedHashMap<>();
+            for (Registration registration : registrations) {
+                try {
+                    write(Collections.singletonList(registration));
+                    succeeded(Collections.singletonList(registration));
+                } catch (SQLException e1) {
+                    System.err.println(registration.name + " (" + registration.uuid + ")");
+                    e1.printStackTrace();
+                    failed.put(registration.uuid, registration.name);
+                }
+            }
+            retry(failed);
+        }
+    }
+
+    private synchronized void succeeded(List<Registration> registrations) {
+        for (Registration registration : registrations) {
+            attempts.remove(registration.uuid);
+        }
+    }
+
+    public void close() {
+        // Lookups that never finish would hold their rows back forever
+        synchronized (this) {
+            closing = true;
+            lookingUp.clear();
+        }
+        nameLookupThread.shutdownNow();
+        flushThread.shutdown();
+        flush();
+    }
+
+    /**
+     * Works out what needs to change for each player. If a name still belongs
+     * to someone else, that player's current name is looked up in the
+     * background and both are registered again once it is known, so that
+     * the rename goes before the claim.
+     */
+    private List<Registration> plan(Map<UUID, String> players) {
+        List<Registration> registrations = new ArrayList<>(players.size());
+
+        for (Map.Entry<UUID, String> entry : players.entrySet()) {
+            UUID uuid = entry.getKey();
+            String name = entry.getValue();
+            UUID previousOwner;
+
+            keyCache.acquireReadLock();
+            try {
+                previousOwner = keyCache.containsActor(name) ? keyCache.getUUID(name) : null;
+            } finally {
+                keyCache.releaseReadLock();
+            }
+
+            if (previousOwner != null && !previousOwner.equals(uuid) && !players.containsKey(previousOwner)) {
+                // The player we knew about has changed their name and someone else has taken their old name
+                lookUpRename(previousOwner, uuid, name);
+                continue;
+            }
+
+            addRegistration(registrations, uuid, name);
+        }
+
+        return registrations;
+    }
+
+    private void lookUpRename(final UUID previousOwner, final UUID uuid, final String name) {
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            Integer count = lookingUp.get(name);
+            lookingUp.put(name, count == null ? 1 : count + 1);
+        }
+
+        try {
+            nameLookupThread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    String currentName = PlayerUtil.getCurrentName(previousOwner);
+
+                    synchronized (PlayerRegistrar.this) {
+                        lookedUp(name);
+
+                        if (currentName == null || currentName.equals(name)) {
+                            System.err.println("Unable to find the current name of " + previousOwner + ", who used to be " + name);
+                            return;
+                        }
+
+                        if (!pending.containsKey(previousOwner)) {
+                            pending.put(previousOwner, currentName);
+                        }
+                        if (!pending.containsKey(uuid)) {
+                            pending.put(uuid, name);
+                        }
+                    }
+                    schedule(COALESCE_MILLIS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing
+            synchronized (this) {
+                lookedUp(name);
+            }
+        }
+    }
+
+    private void lookedUp(String name) {
+        Integer count = lookingUp.get(name);
+        if (count == null || count == 1) {
+            lookingUp.remove(name);
+        } else {
+            lookingUp.put(name, count - 1);
+        }
+    }
+
+    private void addRegistration(List<Registration> registrations, UUID uuid, String name) {
+        keyCache.acquireReadLock();
+        try {
+            String knownName = keyCache.getActor(uuid);
+            if (name.equals(knownName)) {
+                return; // Information is correct
+            } else if (knownName != null) {
+                registrations.add(new Registration(uuid, name, knownName, Type.RENAME));
+            } else if (keyCache.containsActor(name) && keyCache.getUUID(name) == null) {
+                registrations.add(new Registration(uuid, name, null, Type.CLAIM)); // Logged before we knew their UUID
+            } else {
+                registrations.add(new Registration(uuid, name, null, Type.INSERT));
+            }
+        } finally {
+            keyCache.releaseReadLock();
+        }
+    }
+
+    private void write(List<Registration> registrations) throws SQLException {
+        List<Registration> inserted = new ArrayList<>();
+
+        try (Connection conn = cp.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement rename = conn.prepareStatement("UPDATE `actors` SET `name` = ? WHERE `uuid` = ?");
+                 PreparedStatement claim = conn.prepareStatement("UPDATE `actors` SET `uuid` = ? WHERE `name` = ? AND `uuid` IS NULL");
+                 PreparedStatement insert = conn.prepareStatement("INSERT IGNORE INTO `actors`(`name`, `uuid`) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement select = conn.prepareStatement("SELECT `id`, `uuid` FROM `actors` WHERE `name` = ?")) {
+
+                // Renames go first and in order, freeing up names for whoever comes after
+                for (Registration registration : registrations) {
+                    if (registration.type == Type.RENAME) {
+                        rename.setString(1, registration.name);
+                        rename.setBytes(2, ForeignKeyCache.getBytes(registration.uuid));
+                        rename.addBatch();
+                    } else if (registration.type == Type.CLAIM) {
+                        claim.setBytes(1, ForeignKeyCache.getBytes(registration.uuid));
+                        claim.setString(2, registration.name);
+                        claim.addBatch();
+                    } else {
+                        inserted.add(registration);
+                    }
+                }
+
+                rename.executeBatch();
+                claim.executeBatch();
+
+                // Another server may have added the name since we planned, so inserts are checked one at a time
+                for (Registration registration : inserted) {
+                    insert.setString(1, registration.name);
+                    insert.setBytes(2, ForeignKeyCache.getBytes(registration.uuid));
+
+                    if (insert.executeUpdate() == 1) {
+                        try (ResultSet rs = insert.getGeneratedKeys()) {
+                            rs.next();
+                            registration.id = rs.getInt(1);
+                        }
+                        DictionaryLog.record(conn, DictionaryLog.ACTOR, registration.id);
+                    } else {
+                        registration.id = claimExisting(claim, select, registration);
+                    }
+                }
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        keyCache.acquireWriteLock();
+        try {
+            for (Registration registration : registrations) {
+                if (registration.type == Type.RENAME) {
+                    int id = keyCache.removeActor(registration.previousName);
+                    if (id == ForeignKeyCache.NO_ENTRY) {
+                        continue; // Evicted in the meantime, it will be loaded again when needed
+                    }
+                    keyCache.addActor(registration.name, id);
+                } else if (registration.type == Type.INSERT) {
+                    keyCache.addActor(registration.name, registration.id);
+                }
+
+                keyCache.addUUID(registration.uuid, registration.name);
+            }
+        } finally {
+            keyCache.releaseWriteLock();
+        }
+    }
+
+    /**
+     * Takes over an actor that already exists under the registration's name,
+     * which is fine as long as it has no UUID yet or already has ours.
+     */
+    private static int claimExisting(PreparedStatement claim, PreparedStatement select, Registration registration) throws SQLException {
+        byte[] uuid = ForeignKeyCache.getBytes(registration.uuid);
+
+        claim.setBytes(1, uuid);
+        claim.setString(2, registration.name);
+        claim.executeUpdate();
+
+        select.setString(1, registration.name);
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Actor " + registration.name + " disappeared while registering");
+            }
+            if (!Arrays.equals(uuid, rs.getBytes(2))) {
+                // Picked up by the next attempt, once the cache knows who has the name
+                throw new SQLException("Actor " + registration.name + " belongs to another player");
+            }
+            return rs.getInt(1);
+        }
+    }
+
+    private enum Type {
+        INSERT, RENAME, CLAIM
+    }
+
+    private static final class Registration {
+
+        final UUID uuid;
+        final String name;
+        final String previousName;
+        final Type type;
+        int id;
+
+        Registration(UUID uuid, String name, String previousName, Type type) {
+            this.uuid = uuid;
+            this.name = name;
+            this.previousName = previousName;
+            this.type = type;
+        }
+    }
+}
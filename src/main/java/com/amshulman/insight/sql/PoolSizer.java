@@ -0,0 +1,85 @@
+package com.amshulman.insight.sql;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amshulman.insight.sql.PoolStats.Decision;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Grows the pool while callers have to wait for connections and shrinks it
+ * again once connections have been sitting idle for a while. Waits are
+ * measured by {@link ConnectionPool#getConnection()}; {@link #run()} is
+ * called periodically to act on them.
+ */
+final class PoolSizer implements Runnable {
+
+    private static final double GROW_WAIT_MILLIS = 5;
+    private static final double SHRINK_WAIT_MILLIS = 0.5;
+    // Shrink slowly, a burst of lookups shouldn't have to grow the pool all over again
+    private static final int QUIET_PERIODS_BEFORE_SHRINK = 6;
+
+    private final HikariConfigMXBean config;
+    private final HikariPoolMXBean pool;
+    private final int minimumSize;
+    private final int maximumSize;
+
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong grows = new AtomicLong();
+    private final AtomicLong shrinks = new AtomicLong();
+
+    private int quietPeriods = 0;
+    private volatile double averageWaitMillis = 0;
+    private volatile Decision lastDecision = Decision.HOLD;
+
+    PoolSizer(HikariConfigMXBean config, HikariPoolMXBean pool, int minimumSize, int maximumSize) {
+        this.config = config;
+        this.pool = pool;
+        this.minimumSize = minimumSize;
+        this.maximumSize = Math.max(minimumSize, maximumSize);
+    }
+
+    void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        waits.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void run() {
+        long count = waits.getAndSet(0);
+        long total = waitNanos.getAndSet(0);
+        averageWaitMillis = count == 0 ? 0 : (double) total / count / TimeUnit.MILLISECONDS.toNanos(1);
+
+        int size = config.getMaximumPoolSize();
+        Decision decision = Decision.HOLD;
+
+        if ((averageWaitMillis >= GROW_WAIT_MILLIS || pool.getThreadsAwaitingConnection() > 0) && size < maximumSize) {
+            config.setMaximumPoolSize(Math.min(maximumSize, size + Math.max(1, size / 4)));
+            decision = Decision.GROW;
+            quietPeriods = 0;
+        } else if (averageWaitMillis < SHRINK_WAIT_MILLIS && pool.getIdleConnections() > size / 2 && size > minimumSize) {
+            if (++quietPeriods >= QUIET_PERIODS_BEFORE_SHRINK) {
+                // Surplus connections are retired by the pool once they have been idle long enough
+                config.setMaximumPoolSize(size - 1);
+                decision = Decision.SHRINK;
+                quietPeriods = 0;
+            }
+        } else {
+            quietPeriods = 0;
+        }
+
+        if (decision == Decision.GROW) {
+            grows.incrementAndGet();
+        } else if (decision == Decision.SHRINK) {
+            shrinks.incrementAndGet();
+        }
+        lastDecision = decision;
+    }
+
+    PoolStats getStats() {
+        return new PoolStats(config.getMaximumPoolSize(), pool.getActiveConnections(), pool.getIdleConnections(), pool.getThreadsAwaitingConnection(),
+                             averageWaitMillis, lastDecision, grows.get(), shrinks.get());
+    }
+}
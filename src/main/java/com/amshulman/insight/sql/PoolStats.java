@@ -0,0 +1,24 @@
+package com.amshulman.insight.sql;
+
+import lombok.Value;
+
+/**
+ * Snapshot of the connection pool and the sizing decisions made so far.
+ */
+@Value
+public class PoolStats {
+
+    public enum Decision {
+        HOLD, GROW, SHRINK
+    }
+
+    int maximumSize;
+    int activeConnections;
+    int idleConnections;
+    int threadsAwaiting;
+    /** Average time spent waiting for a connection since the previous decision. */
+    double averageWaitMillis;
+    Decision lastDecision;
+    long grows;
+    long shrinks;
+}
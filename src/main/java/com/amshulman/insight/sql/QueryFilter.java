@@ -0,0 +1,173 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amshulman.insight.action.InsightAction;
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.types.InsightMaterial;
+
+/**
+ * Evaluates the conditions {@link SqlSelectionQueryBuilder} puts into its
+ * {@code WHERE} clause against rows held outside of the database.
+ */
+public final class QueryFilter {
+
+    private final Set<String> actors;
+    private final boolean invertActors;
+    private final Set<String> actions = new HashSet<>();
+    private final boolean invertActions;
+    private final Set<String> actees;
+    private final boolean invertActees;
+    private final Set<InsightMaterial> materials;
+    private final boolean invertMaterials;
+
+    private final boolean locationSet;
+    private final int minX, maxX, minY, maxY, minZ, maxZ;
+    private final boolean exactPoint;
+    private final boolean radiusSet;
+    private final int pointX, pointY, pointZ;
+    private final long radiusSquared;
+
+    private final long after;
+    private final long before;
+
+    public QueryFilter(QueryParameters params) {
+        actors = params.getActors();
+        invertActors = params.isInvertActors();
+        for (InsightAction action : params.getActions()) {
+            actions.add(action.getName());
+        }
+        invertActions = params.isInvertActions();
+        actees = params.getActees();
+        invertActees = params.isInvertActees();
+        materials = params.getMaterials();
+        invertMaterials = params.isInvertMaterials();
+
+        locationSet = params.isLocationSet();
+        if (locationSet) {
+            exactPoint = params.getPoint() != null && params.getRadius() == 0;
+            radiusSet = params.getPoint() != null && params.getRadius() != 0;
+            minX = params.getMinX();
+            maxX = params.getMaxX();
+            minY = params.getMinY();
+            maxY = params.getMaxY();
+            minZ = params.getMinZ();
+            maxZ = params.getMaxZ();
+        } else {
+            exactPoint = false;
+            radiusSet = false;
+            minX = minY = minZ = Integer.MIN_VALUE;
+            maxX = maxY = maxZ = Integer.MAX_VALUE;
+        }
+
+        if (params.getPoint() != null) {
+            pointX = params.getPoint().getX();
+            pointY = params.getPoint().getY();
+            pointZ = params.getPoint().getZ();
+        } else {
+            pointX = pointY = pointZ = 0;
+        }
+        radiusSquared = (long) params.getRadius() * params.getRadius();
+
+        after = params.getAfter() == null ? Long.MIN_VALUE : Timestamp.valueOf(params.getAfter()).getTime();
+        before = params.getBefore() == null ? Long.MAX_VALUE : Timestamp.valueOf(params.getBefore()).getTime();
+    }
+
+    /**
+     * Returns whether any row within the given bounds could match.
+     */
+    public boolean mayMatch(long minDatetime, long maxDatetime, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        if (maxDatetime <= after || minDatetime >= before) {
+            return false;
+        }
+
+        if (exactPoint) {
+            return pointX >= minX && pointX <= maxX && pointY >= minY && pointY <= maxY && pointZ >= minZ && pointZ <= maxZ;
+        }
+
+        return maxX >= this.minX && minX <= this.maxX && maxY >= this.minY && minY <= this.maxY && maxZ >= this.minZ && minZ <= this.maxZ;
+    }
+
+    /**
+     * Returns whether any row within the given 16x16 chunk could match.
+     */
+    public boolean mayMatchChunk(int chunkX, int chunkZ) {
+        if (exactPoint) {
+            return pointX >> 4 == chunkX && pointZ >> 4 == chunkZ;
+        }
+
+        long x = (long) chunkX << 4, z = (long) chunkZ << 4;
+        return x + 15 >= minX && x <= maxX && z + 15 >= minZ && z <= maxZ;
+    }
+
+    public boolean isLocationSet() {
+        return locationSet;
+    }
+
+    public boolean matches(HistoryRow row) {
+        return matchesSet(actors, invertActors, row.getActor()) &&
+               matchesSet(actions, invertActions, row.getAction()) &&
+               matchesSet(actees, invertActees, row.getActee()) &&
+               matchesMaterial(row) &&
+               matchesLocation(row.getX(), row.getY(), row.getZ()) &&
+               row.getDatetime() > after && row.getDatetime() < before;
+    }
+
+    private static boolean matchesSet(Set<String> set, boolean invert, String value) {
+        if (set.isEmpty()) {
+            return true;
+        }
+
+        // Mirrors SQL, where comparisons against NULL are never true
+        if (value == null) {
+            return false;
+        }
+
+        return set.contains(value) != invert;
+    }
+
+    private boolean matchesMaterial(HistoryRow row) {
+        if (materials.isEmpty()) {
+            return true;
+        }
+
+        if (row.getMaterialName() == null) {
+            return false;
+        }
+
+        for (InsightMaterial m : materials) {
+            boolean match = m.getNamespace().equals(row.getMaterialNamespace()) &&
+                            m.getName().equals(row.getMaterialName()) &&
+                            (m.getSubtype() == InsightMaterial.UNSPECIFIED_SUBTYPE || m.getSubtype() == row.getMaterialSubtype());
+
+            if (match) {
+                return !invertMaterials;
+            }
+        }
+
+        return invertMaterials;
+    }
+
+    private boolean matchesLocation(int x, int y, int z) {
+        if (!locationSet) {
+            return true;
+        }
+
+        if (exactPoint) {
+            return x == pointX && y == pointY && z == pointZ;
+        }
+
+        if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+            return false;
+        }
+
+        if (radiusSet) {
+            long dx = x - pointX, dy = y - pointY, dz = z - pointZ;
+            return dx * dx + dy * dy + dz * dz <= radiusSquared;
+        }
+
+        return true;
+    }
+}
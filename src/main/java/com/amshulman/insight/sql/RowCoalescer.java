@@ -0,0 +1,161 @@
+package com.amshulman.insight.sql;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+
+import com.amshulman.insight.row.BlockRowEntry;
+import com.amshulman.insight.row.EntityRowEntry;
+import com.amshulman.insight.row.ItemRowEntry;
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.types.InsightMaterial;
+import com.amshulman.insight.types.MaterialCompat;
+
+/**
+ * Drops redundant rows from a batch before it is written, according to the
+ * {@link CoalesceRule} of each row's action. Only rows at most the window
+ * apart are coalesced, measured from the first row of a run, so a long
+ * stretch of activity still leaves a row every window.
+ * <p>
+ * Coalescing happens before the activity rollups count the rows, so dropped
+ * rows aren't counted in aggregate lookups either.
+ */
+public final class RowCoalescer {
+
+    private final Map<String, CoalesceRule> rules;
+    private final long windowMillis;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RowCoalescer(Map<String, CoalesceRule> rules, long windowMillis) {
+        this.rules = new HashMap<>(rules);
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Removes the redundant rows of {@code rows}, which must be in the order
+     * they were submitted.
+     */
+    public void coalesce(List<RowEntry> rows) {
+        if (rules.isEmpty() || windowMillis <= 0) {
+            return;
+        }
+
+        Set<RowEntry> redundant = findRedundant(rows);
+        if (redundant.isEmpty()) {
+            return;
+        }
+
+        for (Iterator<RowEntry> iter = rows.iterator(); iter.hasNext();) {
+            if (redundant.contains(iter.next())) {
+                iter.remove();
+            }
+        }
+        dropped.addAndGet(redundant.size());
+    }
+
+    /**
+     * Returns the number of rows dropped since startup.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private Set<RowEntry> findRedundant(Iterable<RowEntry> rows) {
+        Set<RowEntry> redundant = Collections.newSetFromMap(new IdentityHashMap<RowEntry, Boolean>());
+        Map<Key, RowEntry> firstDuplicates = new HashMap<>();
+        Map<Key, Run> runs = new HashMap<>();
+
+        for (RowEntry row : rows) {
+            CoalesceRule rule = rules.get(row.getAction());
+            if (rule == null || rule == CoalesceRule.NONE) {
+                continue;
+            }
+
+            if (rule == CoalesceRule.DROP_DUPLICATES) {
+                // Metadata holds item quantities too, so rows that differ in it are never duplicates
+                Key key = new Key(getTable(row), row.getWorld(), row.getX(), row.getY(), row.getZ(), row.getActor(), row.getAction(), getSubject(row),
+                                  DatabaseDumper.serializeMetadata(row));
+                RowEntry first = firstDuplicates.get(key);
+                if (first != null && row.getDatetime() - first.getDatetime() <= windowMillis) {
+                    redundant.add(row);
+                } else {
+                    firstDuplicates.put(key, row);
+                }
+            } else {
+                Key key = new Key(getTable(row), row.getWorld(), row.getX(), row.getY(), row.getZ(), row.getActor(), null, null, null);
+                Run run = runs.get(key);
+                if (run != null && row.getDatetime() - run.first.getDatetime() <= windowMillis) {
+                    // The previous last row is now somewhere in the middle
+                    if (run.last != null) {
+                        redundant.add(run.last);
+                    }
+                    run.last = row;
+                } else {
+                    runs.put(key, new Run(row));
+                }
+            }
+        }
+
+        return redundant;
+    }
+
+    private static WorldTable getTable(RowEntry row) {
+        if (row instanceof BlockRowEntry) {
+            return WorldTable.BLOCKS;
+        } else if (row instanceof ItemRowEntry) {
+            return WorldTable.ITEMS;
+        } else if (row instanceof EntityRowEntry) {
+            return WorldTable.ENTITIES;
+        }
+        return null;
+    }
+
+    private static String getSubject(RowEntry row) {
+        InsightMaterial m;
+        if (row instanceof BlockRowEntry) {
+            m = MaterialCompat.getInsightMaterial(((BlockRowEntry) row).getBlock());
+        } else if (row instanceof ItemRowEntry) {
+            ItemRowEntry itemRow = (ItemRowEntry) row;
+            m = MaterialCompat.getInsightMaterial(itemRow.getItemType(), itemRow.getDamage());
+        } else if (row instanceof EntityRowEntry) {
+            return ((EntityRowEntry) row).getActee();
+        } else {
+            return null;
+        }
+
+        return m.getNamespace() + ':' + m.getName() + ':' + m.getSubtype();
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class Key {
+
+        final WorldTable table;
+        final String world;
+        final int x;
+        final int y;
+        final int z;
+        final String actor;
+        final String action;
+        final String subject;
+        final byte[] metadata;
+    }
+
+    private static final class Run {
+
+        final RowEntry first;
+        RowEntry last;
+
+        Run(RowEntry first) {
+            this.first = first;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.amshulman.insight.sql;
+
+import lombok.Value;
+
+/**
+ * Approximate number of rows a lookup would have to go through.
+ */
+@Value
+public class RowCountEstimate {
+
+    public enum Source {
+        /**
+         * Counted from the activity rollups, whole hours and regions at a
+         * time; never less than the actual count of logged rows. Only used
+         * when the rollups cover the whole time range of the lookup.
+         */
+        ROLLUP,
+        /** The query planner's guess, which can be off by an order of magnitude either way. */
+        EXPLAIN
+    }
+
+    long rows;
+    Source source;
+}
@@ -0,0 +1,147 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import com.amshulman.insight.action.InsightAction;
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.sql.RowCountEstimate.Source;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder.SqlSelectionQuery;
+
+/**
+ * Estimates how many rows a lookup matches without running it, so that
+ * callers can warn about or reschedule lookups that would scan for minutes.
+ * Lookups the rollups can answer, over hours they fully cover, are counted
+ * there; everything else is left to the query planner's row estimates.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RowCountEstimator {
+
+    private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+    public static RowCountEstimate estimate(Connection conn, QueryParameters params, WorldRegistry registry) throws SQLException {
+        if (canUseRollup(params) && isCoveredByRollup(params, registry)) {
+            return new RowCountEstimate(countFromRollup(conn, params, registry), Source.ROLLUP);
+        }
+
+        return new RowCountEstimate(explain(conn, params, registry), Source.EXPLAIN);
+    }
+
+    /**
+     * Rollups only know actors, actions, hours and regions, and only by
+     * inclusion.
+     */
+    private static boolean canUseRollup(QueryParameters params) {
+        return params.getActees().isEmpty() && params.getMaterials().isEmpty() && !params.isInvertActors() && !params.isInvertActions();
+    }
+
+    /**
+     * Rows from before a world's rollups existed aren't counted, so the
+     * rollups only give an upper bound for lookups that start after that.
+     */
+    private static boolean isCoveredByRollup(QueryParameters params, WorldRegistry registry) {
+        LocalDateTime after = params.getAfter() == null ? TableCreator.ROLLUP_SINCE_BEGINNING : params.getAfter();
+        for (String world : params.getWorlds()) {
+            LocalDateTime since = registry.getRollupSince(world);
+            if (since == null || after.isBefore(since)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long countFromRollup(Connection conn, QueryParameters params, WorldRegistry registry) throws SQLException {
+        ActivityQuery query = new ActivityQuery();
+        query.setWorlds(params.getWorlds());
+        query.setActors(params.getActors());
+
+        Set<String> actions = new HashSet<>();
+        for (InsightAction action : params.getActions()) {
+            actions.add(action.getName());
+        }
+        query.setActions(actions);
+
+        query.setAfter(params.getAfter());
+        query.setBefore(params.getBefore());
+        if (params.isLocationSet()) {
+            query.setRegion(params.getMinX(), params.getMinZ(), params.getMaxX(), params.getMaxZ());
+        }
+        query.setGroupBy(EnumSet.noneOf(ActivityQuery.Grouping.class));
+
+        long total = 0;
+        for (ActivityCount count : ActivityRollup.query(conn, query, registry)) {
+            total += count.getCount();
+        }
+        return total;
+    }
+
+    /**
+     * Adds up the planner's row estimates for the world tables in the plan.
+     * Joined tables are looked up by primary key, so they don't multiply the
+     * count. PostgreSQL only reports the total, on the first line of the plan.
+     */
+    private static long explain(Connection conn, QueryParameters params, WorldRegistry registry) throws SQLException {
+        SqlSelectionQuery query = SqlSelectionQueryBuilder.buildUnbounded(params, registry);
+
+        Set<String> tables = new HashSet<>();
+        for (String world : params.getWorlds()) {
+            for (WorldTable table : SqlSelectionQueryBuilder.getTables(params)) {
+                tables.add(table.getTableName(world));
+            }
+        }
+
+        try (PreparedStatement stmt = query.getExplainStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+            int tableColumn = findColumn(rs, "table");
+            int rowsColumn = findColumn(rs, "rows");
+            int filteredColumn = findColumn(rs, "filtered");
+
+            if (rowsColumn == 0) {
+                if (rs.next()) {
+                    Matcher m = PLAN_ROWS.matcher(rs.getString(1));
+                    if (m.find()) {
+                        return Long.parseLong(m.group(1));
+                    }
+                }
+                return 0;
+            }
+
+            double total = 0;
+            while (rs.next()) {
+                if (tableColumn != 0 && !tables.contains(rs.getString(tableColumn))) {
+                    continue;
+                }
+
+                double rows = rs.getLong(rowsColumn);
+                if (filteredColumn != 0 && rs.getObject(filteredColumn) != null) {
+                    rows *= rs.getDouble(filteredColumn) / 100;
+                }
+                total += rows;
+            }
+            return Math.round(total);
+        }
+    }
+
+    // Column sets differ between servers and versions, so missing columns are expected
+    private static int findColumn(ResultSet rs, String label) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        for (int i = 1; i <= meta.getColumnCount(); ++i) {
+            if (label.equalsIgnoreCase(meta.getColumnLabel(i))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
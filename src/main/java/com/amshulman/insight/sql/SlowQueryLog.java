@@ -0,0 +1,170 @@
+package com.amshulman.insight.sql;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.sql.SqlSelectionQueryBuilder.SqlSelectionQuery;
+
+/**
+ * Records lookups that take longer than a threshold, plus an optional random
+ * sample of all lookups, to a rotating file. Each entry has the shape of the
+ * query, its SQL, how long building, executing and reading the results took,
+ * and optionally the plan the database chose.
+ */
+public final class SlowQueryLog implements Closeable {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final Logger logger = Logger.getAnonymousLogger();
+    private final FileHandler handler;
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final boolean explain;
+
+    /**
+     * @param thresholdMillis Lookups taking at least this long are logged. Negative to only log samples.
+     * @param sampleRate Fraction of all other lookups to log.
+     * @param explain Whether to capture the query plan of logged lookups.
+     */
+    public SlowQueryLog(File folder, long thresholdMillis, double sampleRate, boolean explain, int maxFileSize, int maxFiles) throws IOException {
+        this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = sampleRate;
+        this.explain = explain;
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+
+        handler = new FileHandler(new File(folder, "slow-queries.%g.log").getPath(), maxFileSize, maxFiles, true);
+        handler.setFormatter(new EntryFormatter());
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+    }
+
+    /**
+     * Logs the lookup if it was slow or is sampled. {@code conn} is used to
+     * capture the plan and must still be open.
+     */
+    public void record(QueryParameters params, SqlSelectionQuery query, long buildNanos, long executeNanos, long materializeNanos, int rows, Connection conn) {
+        long total = buildNanos + executeNanos + materializeNanos;
+        boolean slow = total >= thresholdNanos;
+        if (!slow && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+
+        StringBuilder entry = new StringBuilder();
+        entry.append(slow ? "slow" : "sampled").append(' ').append(TimeUnit.NANOSECONDS.toMillis(total)).append("ms")
+             .append(" build=").append(toMillis(buildNanos))
+             .append(" execute=").append(toMillis(executeNanos))
+             .append(" materialize=").append(toMillis(materializeNanos))
+             .append(" rows=").append(rows)
+             .append(" parameters=").append(query.getParameterCount()).append(LINE_SEPARATOR)
+             .append("shape: ").append(describe(params)).append(LINE_SEPARATOR)
+             .append("sql: ").append(query.getSql()).append(LINE_SEPARATOR);
+
+        if (explain) {
+            appendPlan(entry, query, conn);
+        }
+
+        logger.info(entry.toString());
+    }
+
+    /**
+     * Closes the log file. Lookups recorded afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        logger.removeHandler(handler);
+        handler.close();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    /**
+     * Describes which filters the lookup used, without their values, so that
+     * lookups of the same kind can be grouped together.
+     */
+    static String describe(QueryParameters params) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("worlds=").append(params.getWorlds().size());
+        appendFilter(sb, "actors", params.getActors().size(), params.isInvertActors());
+        appendFilter(sb, "actions", params.getActions().size(), params.isInvertActions());
+        appendFilter(sb, "actees", params.getActees().size(), params.isInvertActees());
+        appendFilter(sb, "materials", params.getMaterials().size(), params.isInvertMaterials());
+
+        sb.append(" location=");
+        if (!params.isLocationSet()) {
+            sb.append("none");
+        } else if (params.getPoint() == null) {
+            sb.append("area");
+        } else if (params.getRadius() == 0) {
+            sb.append("point");
+        } else {
+            sb.append("radius");
+        }
+
+        sb.append(" after=").append(params.getAfter() != null)
+          .append(" before=").append(params.getBefore() != null)
+          .append(" order=").append(params.isOrderReversed() ? "asc" : "desc");
+
+        return sb.toString();
+    }
+
+    private static void appendFilter(StringBuilder sb, String name, int size, boolean inverted) {
+        sb.append(' ').append(name).append('=');
+        if (inverted && size != 0) {
+            sb.append('!');
+        }
+        sb.append(size);
+    }
+
+    private static void appendPlan(StringBuilder entry, SqlSelectionQuery query, Connection conn) {
+        try (PreparedStatement stmt = query.getExplainStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+            ResultSetMetaData meta = rs.getMetaData();
+
+            entry.append("plan:");
+            for (int i = 1; i <= meta.getColumnCount(); ++i) {
+                entry.append(i == 1 ? " " : "\t").append(meta.getColumnLabel(i));
+            }
+            entry.append(LINE_SEPARATOR);
+
+            while (rs.next()) {
+                entry.append("  ");
+                for (int i = 1; i <= meta.getColumnCount(); ++i) {
+                    entry.append(i == 1 ? "" : "\t").append(rs.getString(i));
+                }
+                entry.append(LINE_SEPARATOR);
+            }
+        } catch (SQLException e) {
+            entry.append("plan: unavailable (").append(e.getMessage()).append(')').append(LINE_SEPARATOR);
+        }
+    }
+
+    private static final class EntryFormatter extends Formatter {
+
+        @Override
+        public String format(LogRecord record) {
+            String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(record.getMillis()));
+            return (record.getLevel() == Level.INFO ? "" : record.getLevel() + " ") + time + ' ' + record.getMessage() + LINE_SEPARATOR;
+        }
+    }
+}
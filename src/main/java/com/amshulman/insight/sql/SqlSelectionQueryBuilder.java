@@ -18,11 +18,13 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Set;
 
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.experimental.FieldDefaults;
 
@@ -51,6 +53,7 @@ public class SqlSelectionQueryBuilder {
     static char LEFT_PAREN = '(';
     static char RIGHT_PAREN = ')';
     static char PARAM = '?';
+    public static final int LOOKUP_LIMIT = 900;
 
     TIntObjectMap<String> whereClauseStringParams = new TIntObjectHashMap<>();
     TIntObjectMap<LocalDateTime> whereClauseTimeParams = new TIntObjectHashMap<>();
@@ -64,7 +67,19 @@ public class SqlSelectionQueryBuilder {
     TIntShortMap queryShortParams = new TIntShortHashMap();
     TIntByteMap queryByteParams = new TIntByteHashMap();
 
-    public static SqlSelectionQuery build(QueryParameters params) {
+    public static SqlSelectionQuery build(QueryParameters params, WorldRegistry registry) {
+        return build(params, registry, true);
+    }
+
+    /**
+     * Builds a query for every matching row rather than just the first page.
+     * Intended for streaming consumers such as {@link com.amshulman.insight.results.ReplayCursor}.
+     */
+    public static SqlSelectionQuery buildUnbounded(QueryParameters params, WorldRegistry registry) {
+        return build(params, registry, false);
+    }
+
+    private static SqlSelectionQuery build(QueryParameters params, WorldRegistry registry, boolean limited) {
         if (params.getWorlds().isEmpty()) {
             throw new IllegalStateException("You must query at least one world");
         }
@@ -72,7 +87,7 @@ public class SqlSelectionQueryBuilder {
         SqlSelectionQueryBuilder queryBuilder = new SqlSelectionQueryBuilder();
 
         String whereClause = queryBuilder.buildWhereClause(params);
-        String query = queryBuilder.buildSelectClauses(params, whereClause);
+        String query = queryBuilder.buildSelectClauses(params, whereClause, registry);
         query += " ORDER BY `datetime`";
 
         if (params.isOrderReversed()) {
@@ -81,7 +96,9 @@ public class SqlSelectionQueryBuilder {
             query += " DESC";
         }
 
-        query += " LIMIT 900";
+        if (limited) {
+            query += " LIMIT " + LOOKUP_LIMIT;
+        }
 
         return new SqlSelectionQuery(query, queryBuilder.queryStringParams, queryBuilder.queryTimeParams, queryBuilder.queryIntParams, queryBuilder.queryShortParams, queryBuilder.queryByteParams);
     }
@@ -303,10 +320,10 @@ public class SqlSelectionQueryBuilder {
         return paramIndex;
     }
 
-    private String buildSelectClauses(QueryParameters params, String whereClause) {
-        int paramIndex = 1;
-        String[] perWorldQueries = new String[params.getWorlds().size()];
-
+    /**
+     * Returns the per-world tables that a lookup has to read.
+     */
+    public static EnumSet<WorldTable> getTables(QueryParameters params) {
         boolean blockActions = false;
         boolean entityActions = false;
         boolean itemActions = false;
@@ -349,15 +366,40 @@ public class SqlSelectionQueryBuilder {
             }
         }
 
+        EnumSet<WorldTable> tables = EnumSet.noneOf(WorldTable.class);
+        if (blockActions) {
+            tables.add(WorldTable.BLOCKS);
+        }
+        if (entityActions) {
+            tables.add(WorldTable.ENTITIES);
+        }
+        if (itemActions) {
+            tables.add(WorldTable.ITEMS);
+        }
+
+        return tables;
+    }
+
+    private String buildSelectClauses(QueryParameters params, String whereClause, WorldRegistry registry) {
+        int paramIndex = 1;
+        String[] perWorldQueries = new String[params.getWorlds().size()];
+
+        EnumSet<WorldTable> tables = getTables(params);
+        boolean blockActions = tables.contains(WorldTable.BLOCKS);
+        boolean entityActions = tables.contains(WorldTable.ENTITIES);
+        boolean itemActions = tables.contains(WorldTable.ITEMS);
+
         int i = 0;
         for (String world : params.getWorlds()) {
             String query = "";
+            // Tables that are still being upgraded have no metadata references yet
+            String metadataId = registry.hasMetadataIds(world) ? "`metadataid`" : "NULL AS `metadataid`";
 
             if (blockActions) {
                 String subquery =
                         "SELECT `datetime`, `actors`.`name` AS `actor`, `actions`.`name` AS `action`, `x`, `y`, `z`, '" + world + "' as `world`, " +
                                 "`materials`.`namespace` AS `material_namespace`, `materials`.`name` AS `material_name`, `materials`.`subtype` AS `material_subtype`, " +
-                                "NULL AS `actee`, `metadata` " +
+                                "NULL AS `actee`, `metadata`, " + metadataId + " " +
                                 "FROM `" + world + "_blocks` " +
                                 "INNER JOIN `actors` ON `" + world + "_blocks`.`actorid` = `actors`.`id` " +
                                 "INNER JOIN `actions` ON `" + world + "_blocks`.`actionid` = `actions`.`id` " +
@@ -376,7 +418,7 @@ public class SqlSelectionQueryBuilder {
                 String subquery =
                         "SELECT `datetime`, `actors`.`name` AS `actor`, `actions`.`name` AS `action`, `x`, `y`, `z`, '" + world + "' as `world`, " +
                                 "NULL AS `material_namespace`, NULL AS `material_name`, NULL AS `material_subtype`, " +
-                                "`actees`.`name` AS `actee`, `metadata` " +
+                                "`actees`.`name` AS `actee`, `metadata`, NULL AS `metadataid` " +
                                 "FROM `" + world + "_entities` " +
                                 "INNER JOIN `actors` ON `" + world + "_entities`.`actorid` = `actors`.`id` " +
                                 "INNER JOIN `actions` ON `" + world + "_entities`.`actionid` = `actions`.`id` " +
@@ -399,7 +441,7 @@ public class SqlSelectionQueryBuilder {
                 String subquery =
                         "SELECT `datetime`, `actors`.`name` AS `actor`, `actions`.`name` AS `action`, `x`, `y`, `z`, '" + world + "' as `world`, " +
                                 "`materials`.`namespace` AS `material_namespace`, `materials`.`name` AS `material_name`, `materials`.`subtype` AS `material_subtype`, " +
-                                "NULL AS `actee`, `metadata` " +
+                                "NULL AS `actee`, `metadata`, " + metadataId + " " +
                                 "FROM `" + world + "_items` " +
                                 "INNER JOIN `actors` ON `" + world + "_items`.`actorid` = `actors`.`id` " +
                                 "INNER JOIN `actions` ON `" + world + "_items`.`actionid` = `actions`.`id` " +
@@ -424,7 +466,7 @@ public class SqlSelectionQueryBuilder {
 
         String query = perWorldQueries[0];
         for (i = 1; i < perWorldQueries.length; ++i) {
-            query += " UNION ALL " + perWorldQueries[1];
+            query += " UNION ALL " + perWorldQueries[i];
         }
 
         return query;
@@ -433,6 +475,7 @@ public class SqlSelectionQueryBuilder {
     @AllArgsConstructor(access = AccessLevel.PRIVATE)
     public static final class SqlSelectionQuery {
 
+        @Getter
         private final String sql;
         private final TIntObjectMap<String> stringParams;
         private final TIntObjectMap<LocalDateTime> timeParams;
@@ -440,7 +483,23 @@ public class SqlSelectionQueryBuilder {
         private final TIntShortMap shortParams;
         private final TIntByteMap byteParams;
 
+        public int getParameterCount() {
+            return stringParams.size() + timeParams.size() + intParams.size() + shortParams.size() + byteParams.size();
+        }
+
         public PreparedStatement getPreparedStatement(Connection c) throws SQLException {
+            return prepare(c, sql);
+        }
+
+        /**
+         * Prepares {@code EXPLAIN} for this query, with the same parameters.
+         * Both MySQL and PostgreSQL accept the same syntax.
+         */
+        public PreparedStatement getExplainStatement(Connection c) throws SQLException {
+            return prepare(c, "EXPLAIN " + sql);
+        }
+
+        private PreparedStatement prepare(Connection c, String sql) throws SQLException {
             final PreparedStatement stmt = c.prepareStatement(sql);
             boolean status = true;
 
@@ -1,8 +1,13 @@
 package com.amshulman.insight.sql;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 import com.google.common.base.CharMatcher;
 
@@ -12,6 +17,15 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class TableCreator {
 
+    /** Bumped whenever the world tables change, so that existing worlds are upgraded on registration. */
+    public static final int SCHEMA_VERSION = 3;
+
+    /** Coverage of the rollups of worlds that had no rows before their rollup table existed. */
+    static final LocalDateTime ROLLUP_SINCE_BEGINNING = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    private static final String ID_CLUSTERED_KEYS = "  PRIMARY KEY (`id`),  KEY `datetime` (`datetime`),";
+    private static final String TIME_CLUSTERED_KEYS = "  PRIMARY KEY (`datetime`,`id`),  KEY `id` (`id`),";
+
     public static void createBasicTables(ConnectionPool cp) throws SQLException {
         String createActionTable =
                 "CREATE TABLE IF NOT EXISTS `actions` (" +
@@ -40,17 +54,64 @@ public class TableCreator {
                 "  UNIQUE KEY `name` (`name`,`subtype`,`namespace`)" +
                 ") ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8;";
 
+        String createMetadataDictionaryTable =
+                "CREATE TABLE IF NOT EXISTS `metadata_dictionaries` (" +
+                "  `id` tinyint(3) unsigned NOT NULL AUTO_INCREMENT," +
+                "  `dictionary` blob NOT NULL," +
+                "  PRIMARY KEY (`id`)" +
+                ") ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8;";
+
+        String createWorldTable =
+                "CREATE TABLE IF NOT EXISTS `worlds` (" +
+                "  `name` varchar(64) NOT NULL," +
+                "  `schema_version` tinyint(3) unsigned NOT NULL," +
+                "  `time_clustered` tinyint(1) NOT NULL DEFAULT 0," +
+                "  `rollup_since` datetime DEFAULT NULL," +
+                "  `metadata_ids` tinyint(1) NOT NULL DEFAULT 0," +
+                "  PRIMARY KEY (`name`)" +
+                ") ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8;";
+
+        String createDictionaryLogTable =
+                "CREATE TABLE IF NOT EXISTS `dictionary_log` (" +
+                "  `id` int(10) unsigned NOT NULL AUTO_INCREMENT," +
+                "  `kind` tinyint(3) unsigned NOT NULL," +
+                "  `entry_id` int(10) unsigned NOT NULL," +
+                "  PRIMARY KEY (`id`)" +
+                ") ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8;";
+
         try (Connection conn = cp.getConnection();
                 Statement stmt = conn.createStatement();) {
                conn.setAutoCommit(false);
                stmt.execute(createActionTable);
                stmt.execute(createActorTable);
                stmt.execute(createMaterialTable);
+               stmt.execute(createMetadataDictionaryTable);
+               stmt.execute(createWorldTable);
+               stmt.execute(createDictionaryLogTable);
+               conn.commit();
+
+               // Registries from before the layout was recorded
+               addColumnIfMissing(conn, "worlds", "time_clustered", "tinyint(1) NOT NULL DEFAULT 0");
+               addColumnIfMissing(conn, "worlds", "rollup_since", "datetime DEFAULT NULL");
+               if (addColumnIfMissing(conn, "worlds", "metadata_ids", "tinyint(1) NOT NULL DEFAULT 0")) {
+                   // Every world set up since the registry existed got the column on registration
+                   stmt.executeUpdate("UPDATE `worlds` SET `metadata_ids` = 1 WHERE `schema_version` > 0");
+               }
                conn.commit();
            }
     }
 
-    public static void createWorldTables(ConnectionPool cp, String worldName) throws SQLException {
+    /**
+     * Creates or upgrades the tables of a world. With {@code timeClustered},
+     * new row tables are stored in {@code datetime} order so that lookups,
+     * which almost always read the most recent rows of a time range, read
+     * contiguous pages. Existing tables keep their layout, converting them is
+     * up to {@link #clusterByTime(ConnectionPool, WorldRegistry, String)}.
+     * Existing tables without the metadata reference column don't get it
+     * here either, that is up to
+     * {@link #addMetadataIds(ConnectionPool, WorldRegistry, String)}.
+     */
+    public static void createWorldTables(ConnectionPool cp, WorldRegistry registry, String worldName, boolean timeClustered) throws SQLException {
         if (!CharMatcher.JAVA_LETTER_OR_DIGIT.or(CharMatcher.anyOf("_-")).matchesAllOf(worldName)) {
             throw new IllegalArgumentException(worldName + " contains unacceptable special characters");
         }
@@ -66,8 +127,8 @@ public class TableCreator {
                 "  `z` mediumint(9) NOT NULL," +
                 "  `blockid` smallint(5) unsigned NOT NULL," +
                 "  `metadata` varbinary(8192) DEFAULT NULL," +
-                "  PRIMARY KEY (`id`)," +
-                "  KEY `datetime` (`datetime`)," +
+                "  `metadataid` int(10) unsigned DEFAULT NULL," +
+                "%keys%" +
                 "  KEY `actionid` (`actionid`)," +
                 "  KEY `actorid` (`actorid`)," +
                 "  KEY `coordinates` (`x`,`z`,`y`)," +
@@ -88,8 +149,7 @@ public class TableCreator {
                 "  `z` mediumint(9) NOT NULL," +
                 "  `acteeid` mediumint(8) unsigned NOT NULL," +
                 "  `metadata` varbinary(8192) DEFAULT NULL," +
-                "  PRIMARY KEY (`id`)," +
-                "  KEY `datetime` (`datetime`)," +
+                "%keys%" +
                 "  KEY `actionid` (`actionid`)," +
                 "  KEY `actorid` (`actorid`)," +
                 "  KEY `coordinates` (`x`,`z`,`y`)," +
@@ -110,8 +170,8 @@ public class TableCreator {
                 "  `z` mediumint(9) NOT NULL," +
                 "  `itemid` smallint(5) unsigned NOT NULL," +
                 "  `metadata` varbinary(8192) DEFAULT NULL," +
-                "  PRIMARY KEY (`id`)," +
-                "  KEY `datetime` (`datetime`)," +
+                "  `metadataid` int(10) unsigned DEFAULT NULL," +
+                "%keys%" +
                 "  KEY `actionid` (`actionid`)," +
                 "  KEY `actorid` (`actorid`)," +
                 "  KEY `coordinates` (`x`,`z`,`y`)," +
@@ -121,17 +181,178 @@ public class TableCreator {
                 "  CONSTRAINT `%world%_items_ibfk_3` FOREIGN KEY (`itemid`) REFERENCES `materials` (`id`)" +
                 ") ENGINE=InnoDB ROW_FORMAT=COMPRESSED DEFAULT CHARSET=utf8;";
 
-        createBlockTable = createBlockTable.replaceAll("%world%", worldName);
-        createEntityTable = createEntityTable.replaceAll("%world%", worldName);
-        createItemTable = createItemTable.replaceAll("%world%", worldName);
+        String createMetadataTable =
+                "CREATE TABLE IF NOT EXISTS `%world%_metadata` (" +
+                "  `id` int(10) unsigned NOT NULL AUTO_INCREMENT," +
+                "  `hash` binary(20) NOT NULL," +
+                "  `metadata` varbinary(8192) NOT NULL," +
+                "  PRIMARY KEY (`id`)," +
+                "  UNIQUE KEY `hash` (`hash`)" +
+                ") ENGINE=InnoDB ROW_FORMAT=COMPRESSED DEFAULT CHARSET=utf8;";
+
+        String createRollupTable =
+                "CREATE TABLE IF NOT EXISTS `%world%_rollup` (" +
+                "  `hour` datetime NOT NULL," +
+                "  `actorid` mediumint(8) unsigned NOT NULL," +
+                "  `actionid` tinyint(3) unsigned NOT NULL," +
+                "  `materialid` smallint(5) unsigned NOT NULL," +
+                "  `regionx` smallint(6) NOT NULL," +
+                "  `regionz` smallint(6) NOT NULL," +
+                "  `count` int(10) unsigned NOT NULL," +
+                "  PRIMARY KEY (`hour`,`actorid`,`actionid`,`materialid`,`regionx`,`regionz`)," +
+                "  KEY `actorid` (`actorid`,`hour`)," +
+                "  KEY `region` (`regionx`,`regionz`,`hour`)" +
+                ") ENGINE=InnoDB ROW_FORMAT=COMPRESSED DEFAULT CHARSET=utf8;";
+
+        String keys = timeClustered ? TIME_CLUSTERED_KEYS : ID_CLUSTERED_KEYS;
+        createBlockTable = createBlockTable.replaceAll("%world%", worldName).replace("%keys%", keys);
+        createEntityTable = createEntityTable.replaceAll("%world%", worldName).replace("%keys%", keys);
+        createItemTable = createItemTable.replaceAll("%world%", worldName).replace("%keys%", keys);
+        createMetadataTable = createMetadataTable.replaceAll("%world%", worldName);
+        createRollupTable = createRollupTable.replaceAll("%world%", worldName);
 
         try (Connection conn = cp.getConnection();
              Statement stmt = conn.createStatement();) {
             conn.setAutoCommit(false);
+            boolean newWorld = !tableExists(conn, WorldTable.BLOCKS.getTableName(worldName));
             stmt.execute(createBlockTable);
             stmt.execute(createEntityTable);
             stmt.execute(createItemTable);
+            stmt.execute(createMetadataTable);
+            stmt.execute(createRollupTable);
+            conn.commit();
+
+            // The tables may have existed already, so record the layout they actually have
+            boolean clustered = true;
+            for (WorldTable table : WorldTable.values()) {
+                clustered &= isClusteredByTime(conn, table.getTableName(worldName));
+            }
+            // Tables created before metadata deduplication existed lack the reference column
+            boolean referencesMetadata = columnExists(conn, worldName + "_blocks", "metadataid") && columnExists(conn, worldName + "_items", "metadataid");
+
+            try (PreparedStatement register = conn.prepareStatement("INSERT INTO `worlds`(`name`, `schema_version`, `time_clustered`, `metadata_ids`) VALUES (?, ?, ?, ?) " +
+                                                                    "ON DUPLICATE KEY UPDATE `schema_version` = VALUES(`schema_version`), `time_clustered` = VALUES(`time_clustered`), " +
+                                                                    "`metadata_ids` = VALUES(`metadata_ids`)")) {
+                register.setString(1, worldName);
+                register.setInt(2, SCHEMA_VERSION);
+                register.setBoolean(3, clustered);
+                register.setBoolean(4, referencesMetadata);
+                register.executeUpdate();
+            }
+            conn.commit();
+
+            // Rollups count the rows written since their table was created, so existing rows are
+            // only covered in a new world. Otherwise they start with the next full hour.
+            LocalDateTime since = newWorld ? ROLLUP_SINCE_BEGINNING : LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            try (PreparedStatement rollup = conn.prepareStatement("UPDATE `worlds` SET `rollup_since` = ? WHERE `name` = ? AND `rollup_since` IS NULL")) {
+                rollup.setTimestamp(1, Timestamp.valueOf(since));
+                rollup.setString(2, worldName);
+                rollup.executeUpdate();
+            }
+            try (PreparedStatement rollup = conn.prepareStatement("SELECT `rollup_since` FROM `worlds` WHERE `name` = ?")) {
+                rollup.setString(1, worldName);
+                try (ResultSet rs = rollup.executeQuery()) {
+                    if (rs.next()) {
+                        since = rs.getTimestamp(1).toLocalDateTime();
+                    }
+                }
+            }
             conn.commit();
+
+            registry.markCurrent(worldName, clustered, referencesMetadata, since);
+        }
+    }
+
+    /**
+     * Moves the primary key of the world's row tables from {@code id} to
+     * ({@code datetime}, {@code id}). {@code id} keeps an index of its own,
+     * which auto increment requires. This rebuilds every table, which takes
+     * a long time for big worlds, so it must not run on the server thread.
+     * The rebuild happens online so rows keep being written meanwhile; if the
+     * server can't do that, the conversion fails instead of locking the table.
+     */
+    public static void clusterByTime(ConnectionPool cp, WorldRegistry registry, String worldName) throws SQLException {
+        try (Connection conn = cp.getConnection()) {
+            for (WorldTable table : WorldTable.values()) {
+                String tableName = table.getTableName(worldName);
+                if (!isClusteredByTime(conn, tableName)) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute("ALTER TABLE `" + tableName + "` DROP PRIMARY KEY, ADD PRIMARY KEY (`datetime`,`id`), ADD KEY `id` (`id`), DROP KEY `datetime`, ALGORITHM=INPLACE, LOCK=NONE");
+                    }
+                }
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement("UPDATE `worlds` SET `time_clustered` = 1 WHERE `name` = ?")) {
+                stmt.setString(1, worldName);
+                stmt.executeUpdate();
+            }
+        }
+
+        registry.markTimeClustered(worldName);
+    }
+
+    /**
+     * Adds the column that references stored metadata to the world's block
+     * and item tables. The column goes last, which MySQL 8 can add without
+     * rebuilding the table, but older servers rebuild it, so this must not
+     * run on the server thread either.
+     */
+    public static void addMetadataIds(ConnectionPool cp, WorldRegistry registry, String worldName) throws SQLException {
+        try (Connection conn = cp.getConnection()) {
+            addColumnIfMissing(conn, worldName + "_blocks", "metadataid", "int(10) unsigned DEFAULT NULL");
+            addColumnIfMissing(conn, worldName + "_items", "metadataid", "int(10) unsigned DEFAULT NULL");
+
+            try (PreparedStatement stmt = conn.prepareStatement("UPDATE `worlds` SET `metadata_ids` = 1 WHERE `name` = ?")) {
+                stmt.setString(1, worldName);
+                stmt.executeUpdate();
+            }
+        }
+
+        registry.markMetadataIds(worldName);
+    }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM `INFORMATION_SCHEMA`.`TABLES` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ?")) {
+            stmt.setString(1, table);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static boolean isClusteredByTime(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM `INFORMATION_SCHEMA`.`STATISTICS` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ? AND `INDEX_NAME` = 'PRIMARY' AND `SEQ_IN_INDEX` = 1 AND `COLUMN_NAME` = 'datetime'")) {
+            stmt.setString(1, table);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM `INFORMATION_SCHEMA`.`COLUMNS` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ? AND `COLUMN_NAME` = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, column);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the column had to be added.
+     */
+    private static boolean addColumnIfMissing(Connection conn, String table, String column, String definition) throws SQLException {
+        if (columnExists(conn, table, column)) {
+            return false;
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE `" + table + "` ADD COLUMN `" + column + "` " + definition);
         }
+        return true;
     }
 }
@@ -0,0 +1,153 @@
+package com.amshulman.insight.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the {@code worlds} table, which lists every world that
+ * has tables along with the schema version those tables were created with,
+ * whether they are clustered by time and whether they can reference stored
+ * metadata yet, and the hour from which the activity rollups count every row
+ * of the world.
+ * Other servers sharing the database are picked up by periodic refreshes.
+ */
+public final class WorldRegistry {
+
+    private static final String WORLDS_QUERY = "SELECT `name`, `schema_version`, `time_clustered`, `rollup_since`, `metadata_ids` FROM `worlds`";
+    private static final String LEGACY_WORLDS_QUERY = "SELECT REPLACE(`TABLE_NAME`, '_blocks', '') FROM `INFORMATION_SCHEMA`.`TABLES` WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` LIKE '%\\_blocks'";
+    private static final String INSERT_WORLD = "INSERT IGNORE INTO `worlds`(`name`, `schema_version`) VALUES (?, 0)";
+
+    private static final long REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConnectionPool cp;
+    private final Map<String, Integer> schemaVersions = new ConcurrentHashMap<>();
+    private final Set<String> timeClustered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, LocalDateTime> rollupSince = new ConcurrentHashMap<>();
+    private final Set<String> metadataIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long lastRefresh;
+
+    public WorldRegistry(ConnectionPool cp) throws SQLException {
+        this.cp = cp;
+
+        try (Connection conn = cp.getConnection()) {
+            load(conn);
+
+            // Databases from before the registry existed only know their worlds through their tables
+            if (schemaVersions.isEmpty()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement legacy = conn.prepareStatement(LEGACY_WORLDS_QUERY);
+                     PreparedStatement insert = conn.prepareStatement(INSERT_WORLD);
+                     ResultSet rs = legacy.executeQuery()) {
+                    while (rs.next()) {
+                        insert.setString(1, rs.getString(1));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+                conn.commit();
+
+                load(conn);
+            }
+        }
+    }
+
+    private void load(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(WORLDS_QUERY);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                String world = InstancePool.intern(rs.getString(1));
+                schemaVersions.put(world, rs.getInt(2));
+                if (rs.getBoolean(3)) {
+                    timeClustered.add(world);
+                } else {
+                    timeClustered.remove(world);
+                }
+                Timestamp since = rs.getTimestamp(4);
+                if (since != null) {
+                    rollupSince.put(world, since.toLocalDateTime());
+                }
+                if (rs.getBoolean(5)) {
+                    metadataIds.add(world);
+                } else {
+                    metadataIds.remove(world);
+                }
+            }
+        }
+
+        lastRefresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns whether the world's tables exist and are up to date.
+     */
+    public boolean isCurrent(String world) {
+        Integer version = schemaVersions.get(world);
+        return version != null && version >= TableCreator.SCHEMA_VERSION;
+    }
+
+    public boolean isTimeClustered(String world) {
+        return timeClustered.contains(world);
+    }
+
+    /**
+     * Returns whether the world's block and item tables have the column that
+     * references stored metadata. Until they do, all metadata is inlined.
+     */
+    public boolean hasMetadataIds(String world) {
+        return metadataIds.contains(world);
+    }
+
+    /**
+     * Returns the hour from which the world's rollups are complete, or null
+     * if the world has none. Rows from before then were logged before the
+     * rollups existed and aren't counted.
+     */
+    public LocalDateTime getRollupSince(String world) {
+        return rollupSince.get(world);
+    }
+
+    void markCurrent(String world, boolean clustered, boolean referencesMetadata, LocalDateTime since) {
+        schemaVersions.put(world, TableCreator.SCHEMA_VERSION);
+        rollupSince.put(world, since);
+        if (clustered) {
+            timeClustered.add(world);
+        } else {
+            timeClustered.remove(world);
+        }
+        if (referencesMetadata) {
+            metadataIds.add(world);
+        } else {
+            metadataIds.remove(world);
+        }
+    }
+
+    void markTimeClustered(String world) {
+        timeClustered.add(world);
+    }
+
+    void markMetadataIds(String world) {
+        metadataIds.add(world);
+    }
+
+    public Set<String> getWorlds() {
+        if (System.currentTimeMillis() - lastRefresh > REFRESH_INTERVAL) {
+            try (Connection conn = cp.getConnection()) {
+                load(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return Collections.unmodifiableSet(new HashSet<>(schemaVersions.keySet()));
+    }
+}
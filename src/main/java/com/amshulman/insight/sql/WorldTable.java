@@ -0,0 +1,21 @@
+package com.amshulman.insight.sql;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public enum WorldTable {
+
+    BLOCKS("_blocks", "blockid"),
+    ITEMS("_items", "itemid"),
+    ENTITIES("_entities", "acteeid");
+
+    private final String suffix;
+    private final String referenceColumn;
+
+    public String getTableName(String world) {
+        return world + suffix;
+    }
+}
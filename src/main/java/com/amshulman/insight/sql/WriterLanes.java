@@ -0,0 +1,256 @@
+package com.amshulman.insight.sql;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Routes encoded rows to one writer lane per world, or per world table when
+ * {@code byTable} is set. Each lane has its own thread, session and buffer,
+ * so a busy world can't hold up a quiet one, rows for the same lane are
+ * committed in the order they were submitted, and writers no longer contend
+ * for each other's tables.
+ */
+public final class WriterLanes implements Closeable {
+
+    private static final int MAX_BATCH_ROWS = 8192;
+
+    private static final Runnable NO_OP = new Runnable() {
+
+        @Override
+        public void run() {}
+    };
+
+    private final BatchCommitter committer;
+    private final DeadLetterStore deadLetters;
+    private final boolean byTable;
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final Runnable onWritten;
+
+    /**
+     * Lanes share {@code committer} and with it its session pool, which
+     * bounds how many of them write at the same time. {@code onWritten} runs
+     * on the lane's thread after every batch.
+     */
+    public WriterLanes(BatchCommitter committer, DeadLetterStore deadLetters, boolean byTable, Runnable onWritten) {
+        this.committer = committer;
+        this.deadLetters = deadLetters;
+        this.byTable = byTable;
+        this.onWritten = onWritten;
+    }
+
+    /**
+     * Queues rows for writing. Rows for the same lane keep their order.
+     */
+    public void submit(List<EncodedRow> rows) {
+        Map<String, List<EncodedRow>> byLane = new LinkedHashMap<>();
+        for (EncodedRow row : rows) {
+            String key = byTable ? row.getTable().getTableName(row.getWorld()) : row.getWorld();
+
+            List<EncodedRow> laneRows = byLane.get(key);
+            if (laneRows == null) {
+                laneRows = new ArrayList<>();
+                byLane.put(key, laneRows);
+            }
+            laneRows.add(row);
+        }
+
+        for (Map.Entry<String, List<EncodedRow>> entry : byLane.entrySet()) {
+            getLane(entry.getKey()).submit(entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the number of rows waiting to be written across all lanes.
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Waits for the rows submitted so far to be written, giving up after the
+     * timeout.
+     */
+    public void awaitWritten(long timeout, TimeUnit unit) {
+        List<Future<?>> markers = new ArrayList<>(lanes.size());
+        for (Lane lane : lanes.values()) {
+            try {
+                // Lanes run in order, so this completes once everything queued before it is written
+                markers.add(lane.thread.submit(NO_OP));
+            } catch (RejectedExecutionException e) {
+                // Already shut down
+            }
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (Future<?> marker : markers) {
+                marker.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Return with whatever has been written
+        }
+    }
+
+    private Lane getLane(String key) {
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            Lane created = new Lane(key);
+            lane = lanes.putIfAbsent(key, created);
+            if (lane == null) {
+                lane = created;
+            } else {
+                created.close();
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Stops accepting rows and waits for the lanes to write what they have.
+     * Rows a lane hasn't started on by then are deferred to the dead letter
+     * store.
+     */
+    @Override
+    public void close() {
+        for (Lane lane : lanes.values()) {
+            lane.thread.shutdown();
+        }
+
+        for (Lane lane : lanes.values()) {
+            try {
+                if (!lane.thread.awaitTermination(10, TimeUnit.SECONDS)) {
+                    List<EncodedRow> remaining = lane.takeBuffer();
+                    System.err.println("Writer lane " + lane.key + " did not finish, deferring " + remaining.size() + " rows");
+                    backlog.addAndGet(-remaining.size());
+                    deadLetters.defer(remaining, new IllegalStateException("Writer lane " + lane.key + " closed"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lane.close();
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        final String key;
+        final ExecutorService thread;
+
+        List<EncodedRow> buffer = new ArrayList<>();
+        boolean scheduled = false;
+
+        Lane(String key) {
+            this.key = key;
+            thread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Insight writer " + key.replace("%", "%%")).setDaemon(true).build());
+        }
+
+        void submit(List<EncodedRow> rows) {
+            backlog.addAndGet(rows.size());
+
+            synchronized (this) {
+                buffer.addAll(rows);
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (scheduled || buffer.isEmpty()) {
+                    return;
+                }
+                scheduled = true;
+            }
+
+            try {
+                thread.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, keep the rows for next time
+                List<EncodedRow> rejected;
+                synchronized (this) {
+                    rejected = takeBuffer();
+                    scheduled = false;
+                }
+                backlog.addAndGet(-rejected.size());
+                deadLetters.defer(rejected, e);
+            }
+        }
+
+        synchronized List<EncodedRow> takeBuffer() {
+            List<EncodedRow> taken = buffer;
+            buffer = new ArrayList<>();
+            return taken;
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                drained = drain();
+            } finally {
+                if (!drained) {
+                    // Don't let a batch that couldn't even be set aside stall the rows behind it
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Commits batches until the buffer is empty, then marks the lane as
+         * no longer scheduled.
+         */
+        private boolean drain() {
+            while (true) {
+                List<EncodedRow> batch;
+                synchronized (this) {
+                    if (buffer.isEmpty()) {
+                        scheduled = false;
+                        return true;
+                    }
+
+                    // Rows that piled up while we were busy go out together
+                    if (buffer.size() <= MAX_BATCH_ROWS) {
+                        batch = takeBuffer();
+                    } else {
+                        List<EncodedRow> head = buffer.subList(0, MAX_BATCH_ROWS);
+                        batch = new ArrayList<>(head);
+                        head.clear();
+                    }
+                }
+
+                try {
+                    committer.commit(batch);
+                } catch (RuntimeException e) {
+                    deadLetters.defer(batch, e);
+                } finally {
+                    backlog.addAndGet(-batch.size());
+                    onWritten.run();
+                }
+            }
+        }
+
+        void close() {
+            thread.shutdown();
+        }
+    }
+}
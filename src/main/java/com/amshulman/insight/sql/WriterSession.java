@@ -0,0 +1,79 @@
+package com.amshulman.insight.sql;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A connection set aside for writing along with the statements prepared on
+ * it, so that steady-state flushes only have to bind and execute. Autocommit
+ * is always off; callers commit or roll back themselves.
+ */
+public final class WriterSession implements Closeable {
+
+    private static final int MAX_STATEMENTS = 128;
+
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private final long openedAt = System.currentTimeMillis();
+    long lastUsed = openedAt;
+
+    WriterSession(ConnectionPool cp) throws SQLException {
+        conn = cp.getConnection();
+        conn.setAutoCommit(false);
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Returns the statement for {@code sql}, preparing it the first time it
+     * is used on this session.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql);
+            statements.put(sql, stmt);
+
+            if (statements.size() > MAX_STATEMENTS) {
+                Iterator<PreparedStatement> eldest = statements.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+        }
+
+        return stmt;
+    }
+
+    long getAge() {
+        return System.currentTimeMillis() - openedAt;
+    }
+
+    long getIdleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                // Closing the connection will take care of it
+            }
+        }
+        statements.clear();
+
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.amshulman.insight.sql;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hands out {@link WriterSession}s to writer threads. Sessions are kept
+ * between flushes and replaced once they get old or have been idle long
+ * enough that the server may have dropped them.
+ * <p>
+ * Every session holds on to a pooled connection, so at most
+ * {@code maxSessions} exist at a time and writers queue up for them beyond
+ * that. Sessions nobody has needed for a while are closed, handing their
+ * connections back to the {@link ConnectionPool}.
+ */
+public final class WriterSessionPool implements Closeable {
+
+    private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(30);
+    private static final long VALIDATE_AFTER = TimeUnit.SECONDS.toMillis(30);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+    private static final long RETIRE_AFTER = TimeUnit.MINUTES.toMillis(1);
+    private static final long BORROW_TIMEOUT_SECONDS = 60;
+
+    // MySQL's default, and far below what PostgreSQL will accept
+    private static final long DEFAULT_MAX_PACKET = 1024 * 1024;
+
+    private final ConnectionPool cp;
+    private final ConcurrentLinkedDeque<WriterSession> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Insight writer session reaper").setDaemon(true).build());
+    private volatile boolean closed = false;
+
+    public WriterSessionPool(ConnectionPool cp, int maxSessions) {
+        this.cp = cp;
+        this.permits = new Semaphore(Math.max(1, maxSessions), true);
+
+        reaper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                retireIdle();
+            }
+        }, RETIRE_AFTER, RETIRE_AFTER, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a session, waiting for one to be released if all of them are
+     * in use.
+     */
+    public WriterSession borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLTransientConnectionException("Timed out waiting for a writer session");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a writer session", e);
+        }
+
+        try {
+            WriterSession session;
+            while ((session = idle.pollFirst()) != null) {
+                if (isUsable(session)) {
+                    return session;
+                }
+                session.close();
+            }
+
+            return new WriterSession(cp);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the largest statement, in bytes, that writers should send.
+     */
+    public long getMaxStatementSize() {
+        long maxPacket = cp.getMaxAllowedPacket();
+        return (maxPacket > 0 ? maxPacket : DEFAULT_MAX_PACKET) / 4 * 3; // Leave room for protocol overhead
+    }
+
+    /**
+     * Hands a session back. Sessions that failed part way through a
+     * transaction should be passed with {@code broken} set, which discards
+     * them along with whatever they had not committed.
+     */
+    public void release(WriterSession session, boolean broken) {
+        try {
+            if (broken || closed || session.getAge() > MAX_AGE) {
+                session.close();
+                return;
+            }
+
+            session.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(session); // Most recently used first so surplus sessions age out
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void retireIdle() {
+        WriterSession session;
+        while ((session = idle.peekLast()) != null && session.getIdleTime() > RETIRE_AFTER) {
+            if (idle.removeLastOccurrence(session)) {
+                session.close();
+            }
+        }
+    }
+
+    private static boolean isUsable(WriterSession session) {
+        if (session.getAge() > MAX_AGE) {
+            return false;
+        }
+
+        try {
+            return session.getIdleTime() < VALIDATE_AFTER || session.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reaper.shutdownNow();
+
+        WriterSession session;
+        while ((session = idle.pollFirst()) != null) {
+            session.close();
+        }
+    }
+}
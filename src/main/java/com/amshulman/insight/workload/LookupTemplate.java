@@ -0,0 +1,15 @@
+package com.amshulman.insight.workload;
+
+import java.util.Random;
+
+import com.amshulman.insight.query.QueryParameterBuilder;
+import com.amshulman.insight.query.QueryParameters;
+
+/**
+ * One kind of lookup in a workload's mix, such as inspecting a single block
+ * or searching an area for a player's actions.
+ */
+public interface LookupTemplate {
+
+    QueryParameters create(QueryParameterBuilder builder, SyntheticTraffic traffic, Random random);
+}
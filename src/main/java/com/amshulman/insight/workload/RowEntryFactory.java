@@ -0,0 +1,14 @@
+package com.amshulman.insight.workload;
+
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.sql.HistoryRow;
+
+/**
+ * Turns generated or captured rows back into the entries a backend accepts.
+ * Row entries wrap server objects such as blocks and item stacks, so this
+ * has to be provided by whoever runs the workload.
+ */
+public interface RowEntryFactory {
+
+    RowEntry create(HistoryRow row);
+}
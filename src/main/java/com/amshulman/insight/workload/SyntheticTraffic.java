@@ -0,0 +1,122 @@
+package com.amshulman.insight.workload;
+
+import java.util.List;
+import java.util.Random;
+
+import com.amshulman.insight.sql.HistoryRow;
+import com.amshulman.insight.sql.WorldTable;
+
+/**
+ * Generates rows that look like a busy server's: most of them come from a
+ * few actors and a few places, the rest are spread thinly over the world.
+ * Lookup templates use the same picks so that they find something.
+ */
+public final class SyntheticTraffic {
+
+    private static final String NAMESPACE = "minecraft";
+
+    private final WorkloadProfile profile;
+    private final String[] worlds;
+    private final String[] actors;
+    private final int[][] hotspotX;
+    private final int[][] hotspotZ;
+
+    public SyntheticTraffic(WorkloadProfile profile) {
+        this.profile = profile;
+        Random random = new Random(profile.getSeed());
+
+        worlds = new String[Math.max(1, profile.getWorlds())];
+        for (int i = 0; i < worlds.length; ++i) {
+            worlds[i] = "world" + i;
+        }
+
+        actors = new String[Math.max(1, profile.getActors())];
+        for (int i = 0; i < actors.length; ++i) {
+            actors[i] = "player" + i;
+        }
+
+        int hotspots = Math.max(1, profile.getHotspots());
+        hotspotX = new int[worlds.length][hotspots];
+        hotspotZ = new int[worlds.length][hotspots];
+        for (int w = 0; w < worlds.length; ++w) {
+            for (int h = 0; h < hotspots; ++h) {
+                hotspotX[w][h] = uniform(random, profile.getWorldRadius());
+                hotspotZ[w][h] = uniform(random, profile.getWorldRadius());
+            }
+        }
+    }
+
+    public String[] getWorlds() {
+        return worlds.clone();
+    }
+
+    /**
+     * Returns the next row, logged at {@code datetime}.
+     */
+    public HistoryRow next(Random random, long datetime) {
+        int world = random.nextInt(worlds.length);
+        String actor = pickActor(random);
+        int[] location = pickLocation(random, world);
+
+        double total = profile.getBlockShare() + profile.getItemShare() + profile.getEntityShare();
+        double r = random.nextDouble() * total;
+
+        if (r < profile.getBlockShare()) {
+            return new HistoryRow(WorldTable.BLOCKS, datetime, actor, pick(random, profile.getBlockActions()), worlds[world], location[0], location[1], location[2],
+                                  NAMESPACE, pick(random, profile.getMaterials()), (short) 0, null, null);
+        } else if (r < profile.getBlockShare() + profile.getItemShare()) {
+            return new HistoryRow(WorldTable.ITEMS, datetime, actor, pick(random, profile.getItemActions()), worlds[world], location[0], location[1], location[2],
+                                  NAMESPACE, pick(random, profile.getMaterials()), (short) 0, null, null);
+        } else {
+            // Players kill mobs far more often than each other
+            String actee = random.nextInt(10) == 0 ? pickActor(random) : pick(random, profile.getMobs());
+            return new HistoryRow(WorldTable.ENTITIES, datetime, actor, pick(random, profile.getEntityActions()), worlds[world], location[0], location[1], location[2],
+                                  null, null, (short) 0, actee, null);
+        }
+    }
+
+    public String pickWorld(Random random) {
+        return worlds[random.nextInt(worlds.length)];
+    }
+
+    /**
+     * Picks an actor, favouring low numbered ones according to the
+     * profile's skew.
+     */
+    public String pickActor(Random random) {
+        double skew = Math.max(1, profile.getActorSkew());
+        return actors[(int) (Math.pow(random.nextDouble(), skew) * actors.length)];
+    }
+
+    /**
+     * Picks a location in the given world as x, y and z.
+     */
+    public int[] pickLocation(Random random, String world) {
+        for (int i = 0; i < worlds.length; ++i) {
+            if (worlds[i].equals(world)) {
+                return pickLocation(random, i);
+            }
+        }
+        throw new IllegalArgumentException("Unknown world " + world);
+    }
+
+    private int[] pickLocation(Random random, int world) {
+        int y = 1 + random.nextInt(127);
+
+        if (random.nextDouble() < profile.getHotspotShare()) {
+            int hotspot = random.nextInt(hotspotX[world].length);
+            return new int[] { hotspotX[world][hotspot] + (int) (random.nextGaussian() * profile.getHotspotRadius()), y,
+                               hotspotZ[world][hotspot] + (int) (random.nextGaussian() * profile.getHotspotRadius()) };
+        }
+
+        return new int[] { uniform(random, profile.getWorldRadius()), y, uniform(random, profile.getWorldRadius()) };
+    }
+
+    private static int uniform(Random random, int radius) {
+        return random.nextInt(2 * radius + 1) - radius;
+    }
+
+    private static String pick(Random random, List<String> choices) {
+        return choices.get(random.nextInt(choices.size()));
+    }
+}
@@ -0,0 +1,184 @@
+package com.amshulman.insight.workload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amshulman.insight.archive.ArchiveSegment;
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.sql.HistoryRow;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Records submitted rows to a folder so the traffic can be replayed later
+ * with {@link WorkloadRunner#replay}. Recording only queues the row; a
+ * background thread buffers rows per world table and writes them out as
+ * archive segments. Rows arriving while the queue is full are dropped rather
+ * than slowing down the thread submitting them.
+ */
+public final class TrafficCapture implements Closeable {
+
+    private static final int FLUSH_ROWS = 50000;
+    private static final int QUEUE_ROWS = 2 * FLUSH_ROWS;
+
+    private final File folder;
+    private final BlockingQueue<RowEntry> queue = new ArrayBlockingQueue<>(QUEUE_ROWS);
+    private final ExecutorService writerThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Insight traffic capture").setDaemon(true).build());
+    private final AtomicLong droppedRows = new AtomicLong();
+    private volatile boolean closed = false;
+
+    // Only touched by the writer thread, and by close once it has stopped
+    private final Map<String, List<HistoryRow>> buffers = new HashMap<>();
+    private int buffered = 0;
+    private int segments = 0;
+
+    public TrafficCapture(File folder) throws IOException {
+        this.folder = folder;
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+
+        writerThread.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                List<RowEntry> rows = new ArrayList<>();
+                while (!closed) {
+                    try {
+                        RowEntry row = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (row == null) {
+                            continue;
+                        }
+
+                        rows.add(row);
+                        queue.drainTo(rows);
+                        for (RowEntry r : rows) {
+                            buffer(r);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    rows.clear();
+                }
+            }
+        });
+    }
+
+    public void record(RowEntry row) {
+        if (closed || !queue.offer(row)) {
+            droppedRows.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns how many rows weren't captured because the queue was full or
+     * the capture was closed.
+     */
+    public long getDroppedRows() {
+        return droppedRows.get();
+    }
+
+    private void buffer(RowEntry row) throws IOException {
+        HistoryRow historyRow = HistoryRow.of(row);
+        String key = historyRow.getWorld() + '.' + historyRow.getTable().name().toLowerCase();
+
+        List<HistoryRow> buffer = buffers.get(key);
+        if (buffer == null) {
+            buffer = new ArrayList<>();
+            buffers.put(key, buffer);
+        }
+        buffer.add(historyRow);
+
+        if (++buffered >= FLUSH_ROWS) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        for (Map.Entry<String, List<HistoryRow>> entry : buffers.entrySet()) {
+            List<HistoryRow> rows = entry.getValue();
+            if (!rows.isEmpty()) {
+                File file = new File(folder, entry.getKey() + '.' + String.format("%06d", segments++) + ArchiveSegment.EXTENSION);
+                ArchiveSegment.write(file, rows.get(0).getWorld(), rows.get(0).getTable(), rows);
+                rows.clear();
+            }
+        }
+        buffered = 0;
+    }
+
+    /**
+     * Stops the writer thread and writes out every row recorded before.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writerThread.shutdown();
+        try {
+            if (!writerThread.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Traffic capture writer did not stop");
+            }
+        } catch (InterruptedException e) {
+            writerThread.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the traffic capture writer", e);
+        }
+
+        List<RowEntry> rows = new ArrayList<>();
+        queue.drainTo(rows);
+        for (RowEntry row : rows) {
+            buffer(row);
+        }
+        flush();
+
+        if (droppedRows.get() != 0) {
+            System.err.println("Traffic capture dropped " + droppedRows.get() + " rows because its queue was full");
+        }
+    }
+
+    /**
+     * Reads back every row captured in {@code folder}, oldest first.
+     */
+    public static List<HistoryRow> read(File folder) throws IOException {
+        List<HistoryRow> rows = new ArrayList<>();
+
+        File[] files = folder.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(ArchiveSegment.EXTENSION);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list " + folder);
+        }
+
+        for (File file : files) {
+            rows.addAll(ArchiveSegment.open(file).read());
+        }
+
+        Collections.sort(rows, new Comparator<HistoryRow>() {
+
+            @Override
+            public int compare(HistoryRow o1, HistoryRow o2) {
+                return Long.compare(o1.getDatetime(), o2.getDatetime());
+            }
+        });
+        return rows;
+    }
+}
@@ -0,0 +1,61 @@
+package com.amshulman.insight.workload;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Shape of the traffic generated by {@link SyntheticTraffic} and the pace at
+ * which {@link WorkloadRunner} drives it.
+ */
+@Getter
+@Setter
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class WorkloadProfile {
+
+    long seed = 0;
+    int durationSeconds = 60;
+
+    /** Rows submitted per second. */
+    int rowsPerSecond = 2000;
+
+    /** Lookups started per second, spread over {@link #lookupThreads}. */
+    int lookupsPerSecond = 5;
+    int lookupThreads = 2;
+
+    /** Weight of each lookup template in the mix. */
+    Map<LookupTemplate, Integer> lookupMix = new LinkedHashMap<>();
+
+    int worlds = 3;
+    int actors = 200;
+
+    /** How strongly rows favour the most active actors; 1 picks every actor equally often. */
+    double actorSkew = 2;
+
+    /** Share of rows for each table; they don't have to add up to one. */
+    double blockShare = 0.8;
+    double itemShare = 0.15;
+    double entityShare = 0.05;
+
+    List<String> blockActions = Arrays.asList("block break", "block place");
+    List<String> itemActions = Arrays.asList("item pickup", "item drop", "item insert", "item remove");
+    List<String> entityActions = Arrays.asList("entity kill", "entity spawn");
+    List<String> materials = Arrays.asList("stone", "dirt", "grass", "cobblestone", "planks", "log", "sand", "glass", "torch", "chest");
+    List<String> mobs = Arrays.asList("zombie", "skeleton", "creeper", "spider", "cow", "sheep", "pig", "chicken");
+
+    /** Rows are spread over a square this far from the origin in each direction. */
+    int worldRadius = 5000;
+
+    /** Places players gather, per world. */
+    int hotspots = 8;
+    int hotspotRadius = 48;
+
+    /** Share of rows that happen around a hotspot rather than anywhere in the world. */
+    double hotspotShare = 0.9;
+}
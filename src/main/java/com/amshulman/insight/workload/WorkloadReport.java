@@ -0,0 +1,43 @@
+package com.amshulman.insight.workload;
+
+import lombok.Value;
+
+/**
+ * Outcome of a {@link WorkloadRunner} run. Latencies are in milliseconds.
+ */
+@Value
+public class WorkloadReport {
+
+    long submittedRows;
+    long droppedRows;
+    /** Time from the first row until the last row was submitted. */
+    double seconds;
+    /** Time from the last row being submitted until every accepted row was written. */
+    double drainSeconds;
+    /** Accepted rows that were still not written when the drain gave up. */
+    long unwrittenRows;
+
+    long lookups;
+    long failedLookups;
+    double lookupP50;
+    double lookupP95;
+    double lookupP99;
+    double lookupMax;
+
+    /** Accepted rows written per second, sustained over the whole run including the drain. */
+    public double getIngestRate() {
+        double total = seconds + drainSeconds;
+        return total == 0 ? 0 : (submittedRows - droppedRows - unwrittenRows) / total;
+    }
+
+    public double getDropRate() {
+        return submittedRows == 0 ? 0 : (double) droppedRows / submittedRows;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rows in %.1fs + %.1fs drain: %.0f rows/s ingested, %.2f%% dropped, %d unwritten; %d lookups (%d failed): p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms",
+                             submittedRows, seconds, drainSeconds, getIngestRate(), getDropRate() * 100, unwrittenRows, lookups, failedLookups, lookupP50, lookupP95,
+                             lookupP99, lookupMax);
+    }
+}
@@ -0,0 +1,258 @@
+package com.amshulman.insight.workload;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amshulman.insight.backend.ReadBackend;
+import com.amshulman.insight.backend.SqlReadWriteBackend;
+import com.amshulman.insight.backend.WriteBackend;
+import com.amshulman.insight.query.QueryParameters;
+import com.amshulman.insight.row.RowEntry;
+import com.amshulman.insight.sql.HistoryRow;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Drives a backend with rows at a set pace while running lookups alongside,
+ * and reports how it kept up. Rows are either generated from a
+ * {@link WorkloadProfile} or replayed from a {@link TrafficCapture}.
+ * <p>
+ * Drops are only counted for {@link SqlReadWriteBackend}, which is the only
+ * backend that sheds rows.
+ */
+public final class WorkloadRunner {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long IDLE_SLEEP_MILLIS = 1;
+
+    private final ReadBackend reader;
+    private final WriteBackend writer;
+    private final RowEntryFactory factory;
+    private final WorkloadProfile profile;
+    private final SyntheticTraffic traffic;
+
+    public <B extends ReadBackend & WriteBackend> WorkloadRunner(B backend, RowEntryFactory factory, WorkloadProfile profile) {
+        this.reader = backend;
+        this.writer = backend;
+        this.factory = factory;
+        this.profile = profile;
+        this.traffic = new SyntheticTraffic(profile);
+    }
+
+    /**
+     * Submits generated rows at the profile's rate for the profile's
+     * duration.
+     */
+    public WorkloadReport run() throws InterruptedException {
+        final Random random = new Random(profile.getSeed());
+        final long durationMillis = TimeUnit.SECONDS.toMillis(profile.getDurationSeconds());
+
+        for (String world : traffic.getWorlds()) {
+            writer.registerWorld(world);
+        }
+
+        return execute(new RowSource() {
+
+            long generated = 0;
+
+            @Override
+            HistoryRow poll(long elapsedMillis) {
+                if (generated >= elapsedMillis * profile.getRowsPerSecond() / 1000) {
+                    return null;
+                }
+                ++generated;
+                return traffic.next(random, System.currentTimeMillis());
+            }
+
+            @Override
+            boolean isDone(long elapsedMillis) {
+                return elapsedMillis >= durationMillis;
+            }
+        });
+    }
+
+    /**
+     * Submits captured rows with their original spacing, sped up by
+     * {@code speed}. Rows are logged at the time they are replayed.
+     */
+    public WorkloadReport replay(final List<HistoryRow> capture, final double speed) throws InterruptedException {
+        Set<String> worlds = new LinkedHashSet<>();
+        for (HistoryRow row : capture) {
+            worlds.add(row.getWorld());
+        }
+        for (String world : worlds) {
+            writer.registerWorld(world);
+        }
+
+        final long first = capture.isEmpty() ? 0 : capture.get(0).getDatetime();
+
+        return execute(new RowSource() {
+
+            int next = 0;
+
+            @Override
+            HistoryRow poll(long elapsedMillis) {
+                if (next == capture.size() || (capture.get(next).getDatetime() - first) / speed > elapsedMillis) {
+                    return null;
+                }
+                return capture.get(next++).withDatetime(System.currentTimeMillis());
+            }
+
+            @Override
+            boolean isDone(long elapsedMillis) {
+                return next == capture.size();
+            }
+        });
+    }
+
+    private WorkloadReport execute(RowSource source) throws InterruptedException {
+        final TLongList latencies = new TLongArrayList();
+        final AtomicLong failedLookups = new AtomicLong();
+        ScheduledExecutorService lookupThreads = startLookups(latencies, failedLookups);
+
+        long submitted = 0, dropped = 0;
+        long start = System.currentTimeMillis();
+
+        try {
+            long elapsed;
+            while (!source.isDone(elapsed = System.currentTimeMillis() - start)) {
+                HistoryRow row = source.poll(elapsed);
+                if (row == null) {
+                    Thread.sleep(IDLE_SLEEP_MILLIS);
+                    continue;
+                }
+
+                ++submitted;
+                if (!submit(factory.create(row))) {
+                    ++dropped;
+                }
+            }
+        } finally {
+            lookupThreads.shutdownNow();
+        }
+
+        lookupThreads.awaitTermination(1, TimeUnit.MINUTES);
+        long drainStart = System.currentTimeMillis();
+        long unwritten = drain();
+        double seconds = (drainStart - start) / 1000.0;
+        double drainSeconds = (System.currentTimeMillis() - drainStart) / 1000.0;
+
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = latencies.toArray();
+        }
+        Arrays.sort(sorted);
+
+        return new WorkloadReport(submitted, dropped, seconds, drainSeconds, unwritten, sorted.length, failedLookups.get(),
+                                  percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 1));
+    }
+
+    private boolean submit(RowEntry row) {
+        if (writer instanceof SqlReadWriteBackend) {
+            return ((SqlReadWriteBackend) writer).trySubmit(row);
+        }
+
+        writer.submit(row);
+        return true;
+    }
+
+    /**
+     * Writes every accepted row, giving up after a while. Returns the number
+     * of rows still not written.
+     */
+    private long drain() {
+        if (!(writer instanceof SqlReadWriteBackend)) {
+            writer.suggestFlush();
+            return 0;
+        }
+
+        SqlReadWriteBackend backend = (SqlReadWriteBackend) writer;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        do {
+            // Waits a while for the writer lanes each time
+            backend.flush();
+        } while (backend.getBacklog() > 0 && System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted());
+
+        return backend.getBacklog();
+    }
+
+    private ScheduledExecutorService startLookups(final TLongList latencies, final AtomicLong failures) {
+        int threads = Math.max(1, profile.getLookupThreads());
+        ScheduledExecutorService lookupThreads = Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("Insight workload lookup %d").setDaemon(true).build());
+
+        final List<LookupTemplate> templates = new ArrayList<>();
+        for (Map.Entry<LookupTemplate, Integer> entry : profile.getLookupMix().entrySet()) {
+            for (int i = 0; i < entry.getValue(); ++i) {
+                templates.add(entry.getKey());
+            }
+        }
+
+        if (templates.isEmpty() || profile.getLookupsPerSecond() <= 0) {
+            return lookupThreads;
+        }
+
+        // One task per thread, each running its share of the lookups
+        long periodMicros = TimeUnit.SECONDS.toMicros(1) * threads / profile.getLookupsPerSecond();
+        for (int i = 0; i < threads; ++i) {
+            final Random random = new Random(profile.getSeed() + i + 1);
+
+            lookupThreads.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    LookupTemplate template = templates.get(random.nextInt(templates.size()));
+                    QueryParameters params = template.create(reader.newQueryBuilder(), traffic, random);
+
+                    long start = System.nanoTime();
+                    try {
+                        if (reader.submit(params) == null) {
+                            failures.incrementAndGet();
+                            return;
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                        return;
+                    }
+                    long latency = System.nanoTime() - start;
+
+                    synchronized (latencies) {
+                        latencies.add(latency);
+                    }
+                }
+            }, periodMicros * i / threads, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        return lookupThreads;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int index = Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1));
+        return sorted[index] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private abstract static class RowSource {
+
+        /**
+         * Returns the next row that is due, or null if none is yet.
+         */
+        abstract HistoryRow poll(long elapsedMillis);
+
+        abstract boolean isDone(long elapsedMillis);
+    }
+}